@@ -0,0 +1,176 @@
+package com.zhengjianting.benchmarks;
+
+import com.zhengjianting.nio.channel.ChannelCopier;
+import com.zhengjianting.nio.channel.ChannelCopy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ChannelCopy.channelCopy1, channelCopy2 and ChannelCopier moving a file
+ * of the given size to another file, to a loopback socket (drained by a
+ * background thread) and from a pipe (filled by a background thread) to a
+ * file. The score is the time for one whole copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelCopyBenchmark {
+    public enum Copy { COPY1, COPY2, ADAPTIVE }
+
+    public enum Route { FILE_TO_FILE, FILE_TO_SOCKET, PIPE_TO_FILE }
+
+    @Param({"COPY1", "COPY2", "ADAPTIVE"})
+    public Copy copy;
+
+    @Param({"FILE_TO_FILE", "FILE_TO_SOCKET", "PIPE_TO_FILE"})
+    public Route route;
+
+    @Param("8388608")
+    public int size;
+
+    private final ChannelCopier copier = new ChannelCopier();
+    private ExecutorService background;
+    private Path sourcePath;
+    private Path destPath;
+    private FileChannel source;
+    private FileChannel dest;
+    private ServerSocketChannel server;
+    private SocketChannel socket;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        background = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "copy-benchmark");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sourcePath = Files.createTempFile("copy-source", null);
+        destPath = Files.createTempFile("copy-dest", null);
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        Files.write(sourcePath, data);
+        source = FileChannel.open(sourcePath, StandardOpenOption.READ);
+        dest = FileChannel.open(destPath, StandardOpenOption.WRITE);
+
+        if (route == Route.FILE_TO_SOCKET) {
+            server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+            socket = SocketChannel.open(server.getLocalAddress());
+            final SocketChannel peer = server.accept();
+            background.execute(() -> drain(peer));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (socket != null) {
+            socket.close();
+            server.close();
+        }
+        source.close();
+        dest.close();
+        Files.delete(sourcePath);
+        Files.delete(destPath);
+        background.shutdownNow();
+    }
+
+    @Benchmark
+    public long copyFile() throws Exception {
+        source.position(0);
+        dest.position(0);
+        switch (route) {
+            case FILE_TO_FILE:
+                return run(source, dest);
+            case FILE_TO_SOCKET:
+                return run(source, socket);
+            default:
+                final Pipe pipe = Pipe.open();
+                Future<?> writer = background.submit(() -> {
+                    try (Pipe.SinkChannel sink = pipe.sink()) {
+                        for (long sent = 0; sent < size; )
+                            sent += source.transferTo(sent, size - sent, sink);
+                    }
+                    return null;
+                });
+                try (Pipe.SourceChannel in = pipe.source()) {
+                    long copied = run(in, dest);
+                    writer.get();
+                    return copied;
+                }
+        }
+    }
+
+    private long run(ReadableByteChannel src, WritableByteChannel target) throws IOException {
+        switch (copy) {
+            case COPY1:
+                ChannelCopy.channelCopy1(src, target);
+                return size;
+            case COPY2:
+                ChannelCopy.channelCopy2(src, target);
+                return size;
+            default:
+                return copier.copy(src, target);
+        }
+    }
+
+    private static void drain(SocketChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+        try {
+            while (channel.read(buffer) != -1)
+                buffer.clear();
+            channel.close();
+        } catch (IOException e) {
+            // benchmark is over
+        }
+    }
+
+    /**
+     * Usage: ChannelCopyBenchmark [JMH options]
+     * Results are written to channel-copy-benchmark.json.
+     */
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(ChannelCopyBenchmark.class.getSimpleName())
+                .resultFormat(ResultFormatType.JSON)
+                .result("channel-copy-benchmark.json")
+                .build();
+        new Runner(opt).run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,147 @@
+package com.zhengjianting.benchmarks;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for the chapter4 servers over loopback: starts every server in
+ * this JVM, drives it with N concurrent closed-loop clients for a fixed
+ * time and writes connections/sec, bytes/sec and latency percentiles for
+ * each transport as a JSON array. Allocation rate is measured by
+ * TransportBenchmark under the JMH GC profiler instead, since the servers
+ * and clients here share one heap.
+ *
+ * Usage: LoopbackHarness [clients] [seconds] [output file]
+ */
+public class LoopbackHarness {
+    private static final int BASE_PORT = 10600;
+
+    private final int clients;
+    private final long durationNanos;
+
+    public LoopbackHarness(int clients, int seconds) {
+        this.clients = clients;
+        this.durationNanos = seconds * 1_000_000_000L;
+    }
+
+    public Result run(Transport transport, int port) throws Exception {
+        transport.start(port);
+
+        final long[][] latencies = new long[clients][];
+        final int[] counts = new int[clients];
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(clients);
+        final long start = System.nanoTime();
+        final long end = start + durationNanos;
+
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            Thread thread = new Thread(() -> {
+                byte[] scratch = new byte[64];
+                long[] samples = new long[1024];
+                int n = 0;
+                long received = 0;
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    try {
+                        received += Transport.request(port, scratch);
+                        if (n == samples.length)
+                            samples = Arrays.copyOf(samples, n * 2);
+                        samples[n++] = System.nanoTime() - now;
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+                latencies[client] = samples;
+                counts[client] = n;
+                bytes.addAndGet(received);
+                done.countDown();
+            }, transport + "-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        long[] all = new long[total];
+        int offset = 0;
+        for (int i = 0; i < clients; i++) {
+            System.arraycopy(latencies[i], 0, all, offset, counts[i]);
+            offset += counts[i];
+        }
+        Arrays.sort(all);
+
+        Result result = new Result();
+        result.transport = transport;
+        result.connections = total;
+        result.errors = errors.get();
+        result.connectionsPerSec = total / seconds;
+        result.bytesPerSec = bytes.get() / seconds;
+        result.p50Micros = percentile(all, 0.50);
+        result.p99Micros = percentile(all, 0.99);
+        result.p999Micros = percentile(all, 0.999);
+        return result;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+    public static class Result {
+        Transport transport;
+        long connections;
+        long errors;
+        double connectionsPerSec;
+        double bytesPerSec;
+        double p50Micros;
+        double p99Micros;
+        double p999Micros;
+
+        void writeJson(Writer out) throws IOException {
+            out.write(String.format(Locale.ROOT, "{\"transport\": \"%s\", \"connections\": %d, \"errors\": %d, " +
+                            "\"connectionsPerSec\": %.1f, \"bytesPerSec\": %.1f, " +
+                            "\"p50Micros\": %.1f, \"p99Micros\": %.1f, \"p999Micros\": %.1f}",
+                    transport, connections, errors, connectionsPerSec, bytesPerSec,
+                    p50Micros, p99Micros, p999Micros));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String output = args.length > 2 ? args[2] : "loopback-harness.json";
+
+        LoopbackHarness harness = new LoopbackHarness(clients, seconds);
+        List<Result> results = new ArrayList<>();
+        Transport[] transports = Transport.values();
+        for (int i = 0; i < transports.length; i++)
+            results.add(harness.run(transports[i], BASE_PORT + i));
+
+        try (Writer out = new FileWriter(output)) {
+            out.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                out.write("  ");
+                results.get(i).writeJson(out);
+                out.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        }
+        System.out.println("results written to: " + output);
+        // The servers have no shutdown path; their non-daemon threads would keep the JVM alive
+        System.exit(0);
+    }
+}
\ No newline at end of file
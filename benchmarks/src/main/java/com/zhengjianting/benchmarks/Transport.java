@@ -0,0 +1,89 @@
+package com.zhengjianting.benchmarks;
+
+import com.zhengjianting.nia.chapter4.NettyNioServer;
+import com.zhengjianting.nia.chapter4.NettyOioServer;
+import com.zhengjianting.nia.chapter4.PlainNioServer;
+import com.zhengjianting.nia.chapter4.PlainOioServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The four chapter4 servers. Each of them writes "Hi!\r\n" to a new
+ * connection and closes it, so one request is: connect, read until EOF.
+ */
+public enum Transport {
+    PLAIN_OIO {
+        @Override
+        void serve(int port) throws Exception {
+            new PlainOioServer().server(port);
+        }
+    },
+    PLAIN_NIO {
+        @Override
+        void serve(int port) throws Exception {
+            new PlainNioServer().server(port);
+        }
+    },
+    NETTY_OIO {
+        @Override
+        void serve(int port) throws Exception {
+            new NettyOioServer().server(port);
+        }
+    },
+    NETTY_NIO {
+        @Override
+        void serve(int port) throws Exception {
+            new NettyNioServer().server(port);
+        }
+    };
+
+    // Runs the server's accept loop; does not return while the server is up
+    abstract void serve(int port) throws Exception;
+
+    /**
+     * Start the server on a daemon thread and wait until it accepts
+     * connections. The servers have no shutdown hook, so they live until
+     * the JVM exits.
+     */
+    public void start(final int port) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            try {
+                serve(port);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, name() + "-server");
+        thread.setDaemon(true);
+        thread.start();
+
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            try {
+                request(port, new byte[64]);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50); // not listening yet
+            }
+        }
+        throw new IllegalStateException(this + " did not start on port " + port);
+    }
+
+    /**
+     * Connect, read the greeting until the server closes the connection.
+     * @return number of bytes received
+     */
+    public static int request(int port, byte[] scratch) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port));
+            InputStream in = socket.getInputStream();
+            int total = 0;
+            int n;
+            while ((n = in.read(scratch)) > 0)
+                total += n;
+            return total;
+        }
+    }
+}
\ No newline at end of file
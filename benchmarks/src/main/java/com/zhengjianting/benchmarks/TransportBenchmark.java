@@ -0,0 +1,75 @@
+package com.zhengjianting.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One connect-and-read-greeting round trip against each chapter4 server,
+ * run in a fresh JVM per transport. Throughput gives connections/sec, the
+ * sample-time mode gives the p50/p99/p999 latency distribution, and the GC
+ * profiler reports allocation rate (gc.alloc.rate.norm per connection).
+ *
+ * Run with main() to get all of that as JSON, or through benchmarks.jar
+ * with "-prof gc -rf json" and the usual JMH options (-t for client threads).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransportBenchmark {
+    @Param({"PLAIN_OIO", "PLAIN_NIO", "NETTY_OIO", "NETTY_NIO"})
+    public Transport transport;
+
+    @Param("10526")
+    public int port;
+
+    @Setup(Level.Trial)
+    public void startServer() throws InterruptedException {
+        transport.start(port);
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final byte[] scratch = new byte[64];
+    }
+
+    @Benchmark
+    public int connectAndRead(Client client) throws Exception {
+        return Transport.request(port, client.scratch);
+    }
+
+    /**
+     * Usage: TransportBenchmark [JMH options]
+     * Results are written to transport-benchmark.json.
+     */
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .include(TransportBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("transport-benchmark.json")
+                .build();
+        new Runner(opt).run();
+    }
+}
\ No newline at end of file
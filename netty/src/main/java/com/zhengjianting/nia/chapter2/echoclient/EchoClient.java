@@ -1,16 +1,30 @@
 package com.zhengjianting.nia.chapter2.echoclient;
 
+import com.zhengjianting.nia.codec.LengthFrameDecoder;
+import com.zhengjianting.nia.codec.LengthFrameEncoder;
+import com.zhengjianting.nia.transport.Transports;
+import com.zhengjianting.nio.metrics.LatencyHistogram;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
+/**
+ * 默认与 EchoServer 一样使用 4 字节长度前缀分帧 (LengthFrameEncoder / LengthFrameDecoder).
+ * 压测不分帧的回显服务器 (例如 nio 模块的 SelectSockets) 时用 -Dnia.echo.framing=false 关闭.
+ */
 public class EchoClient {
+    private static final boolean FRAMING = Boolean.parseBoolean(System.getProperty("nia.echo.framing", "true"));
+
     private final String host;
     private final int port;
 
@@ -20,15 +34,16 @@ public class EchoClient {
     }
 
     public void start() throws Exception {
-        EventLoopGroup group = new NioEventLoopGroup();
+        EventLoopGroup group = Transports.newEventLoopGroup(0);
         try {
             Bootstrap b = new Bootstrap();
-            b.group(group)
-                    .channel(NioSocketChannel.class)
+            Transports.configure(b.group(group))
                     .remoteAddress(new InetSocketAddress(host, port))
                     .handler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
+                            if (FRAMING)
+                                socketChannel.pipeline().addLast(new LengthFrameDecoder(), new LengthFrameEncoder());
                             socketChannel.pipeline().addLast(new EchoClientHandler());
                         }
                     });
@@ -39,13 +54,75 @@ public class EchoClient {
         }
     }
 
+    /**
+     * 负载生成模式: 打开 connections 个连接, 每个请求 payloadSize 字节, 每个连接最多 depth 个在途请求.
+     * rate 是所有连接合计的每秒请求数 (开环), 为 0 时每个连接始终保持 depth 个在途请求 (闭环).
+     * 每秒打印一次该秒内的往返延迟分位数 (微秒), 结束时打印全程的分位数.
+     * skipBytes 是服务端在连接建立时发送的欢迎语长度 (例如 SelectSockets 为 11), 这些字节不计入响应.
+     */
+    public void startLoad(int connections, int payloadSize, int rate, int depth, int seconds, int skipBytes) throws Exception {
+        byte[] bytes = new byte[payloadSize];
+        new Random().nextBytes(bytes);
+        final ByteBuf payload = Unpooled.unreleasableBuffer(Unpooled.directBuffer(payloadSize).writeBytes(bytes));
+        final long intervalNanos = rate > 0 ? (long) (connections * 1e9 / rate) : 0; // 单个连接的发送间隔
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        EventLoopGroup group = Transports.newEventLoopGroup(0);
+        try {
+            Bootstrap b = new Bootstrap();
+            Transports.configure(b.group(group))
+                    .remoteAddress(new InetSocketAddress(host, port))
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel socketChannel) throws Exception {
+                            if (FRAMING) // 每个响应帧解码后恰好是 payloadSize 字节, LoadGeneratorHandler 的计数方式不变
+                                socketChannel.pipeline().addLast(new LengthFrameDecoder(), new LengthFrameEncoder());
+                            socketChannel.pipeline().addLast(
+                                    new LoadGeneratorHandler(payload, depth, intervalNanos, skipBytes, histogram));
+                        }
+                    });
+            List<ChannelFuture> futures = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++)
+                futures.add(b.connect());
+            List<Channel> channels = new ArrayList<>(connections);
+            for (ChannelFuture f : futures)
+                channels.add(f.sync().channel());
+
+            LatencyHistogram.Snapshot start = histogram.snapshot();
+            LatencyHistogram.Snapshot last = start;
+            for (int i = 1; i <= seconds; i++) {
+                Thread.sleep(1000);
+                LatencyHistogram.Snapshot now = histogram.snapshot();
+                System.out.println(String.format("[%3ds] %s", i, now.minus(last).summary(1000)));
+                last = now;
+            }
+            for (Channel channel : channels)
+                channel.close();
+            System.out.println("total: " + last.minus(start).summary(1000));
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
+        if (args.length != 2 && args.length < 7) {
             System.err.println("Usage: " + EchoClient.class.getSimpleName() + " <host> <port>");
+            System.err.println("       " + EchoClient.class.getSimpleName()
+                    + " <host> <port> <connections> <payload size> <rate|0> <depth> <seconds> [skip bytes]");
             return;
         }
         String host = args[0];
         int port = Integer.parseInt(args[1]);
-        new EchoClient(host, port).start();
+        if (args.length == 2) {
+            new EchoClient(host, port).start();
+            return;
+        }
+        new EchoClient(host, port).startLoad(
+                Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]),
+                Integer.parseInt(args[4]),
+                Integer.parseInt(args[5]),
+                Integer.parseInt(args[6]),
+                args.length > 7 ? Integer.parseInt(args[7]) : 0);
     }
 }
\ No newline at end of file
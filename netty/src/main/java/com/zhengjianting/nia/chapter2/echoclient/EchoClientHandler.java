@@ -1,7 +1,7 @@
 package com.zhengjianting.nia.chapter2.echoclient;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
@@ -12,7 +12,7 @@ public class EchoClientHandler extends SimpleChannelInboundHandler<ByteBuf> {
     // 当被通知 Channel 是活跃的时候, 发送一条消息
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        ctx.writeAndFlush(Unpooled.copiedBuffer("Netty rocks!", CharsetUtil.UTF_8));
+        ctx.writeAndFlush(ByteBufUtil.writeUtf8(ctx.alloc(), "Netty rocks!")); // 从 Channel 配置的 (池化) 分配器申请, 直接编码进去
     }
 
     // 记录已接收消息的转储
@@ -0,0 +1,117 @@
+package com.zhengjianting.nia.chapter2.echoclient;
+
+import com.zhengjianting.nio.metrics.LatencyHistogram;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 负载生成模式下每个连接一个实例 (不能共享).
+ * 每个请求是 payloadSize 字节, 服务端原样回显, 所以每收到 payloadSize 字节就完成一个请求 (按发送顺序).
+ *
+ * 开环模式 (intervalNanos > 0) 按固定节奏计算每个请求的计划发送时间, 延迟从计划时间开始算,
+ * 因此当服务端变慢、在途请求达到 pipelining 深度而推迟发送时, 排队时间也会计入延迟, 避免 coordinated omission.
+ * 开环模式下每个连接最多只有一个定时任务, 定在下一个请求的计划时间; 在途请求达到 depth 时不设定时, 由收到响应时补发.
+ * 闭环模式 (intervalNanos == 0) 始终保持 depth 个在途请求.
+ */
+public class LoadGeneratorHandler extends ChannelInboundHandlerAdapter {
+    private final ByteBuf payload; // 所有连接共享的 unreleasable 缓冲区, 每次写它的 duplicate
+    private final int payloadSize;
+    private final int depth;
+    private final long intervalNanos;
+    private final int skipBytes;
+    private final LatencyHistogram histogram;
+
+    private final long[] sendTimes; // 在途请求的 (计划) 发送时间, 环形队列
+    private int head;
+    private int outstanding;
+    private long received; // 尚未凑满一个响应的字节数
+    private long toSkip;
+    private long nextIntended;
+    private Runnable sendTask;
+    private ScheduledFuture<?> ticker; // 尚未执行的定时任务, 没有时为 null
+
+    public LoadGeneratorHandler(ByteBuf payload, int depth, long intervalNanos, int skipBytes, LatencyHistogram histogram) {
+        if (depth < 1)
+            throw new IllegalArgumentException("depth: " + depth);
+        this.payload = payload;
+        this.payloadSize = payload.readableBytes();
+        this.depth = depth;
+        this.intervalNanos = intervalNanos;
+        this.skipBytes = skipBytes;
+        this.histogram = histogram;
+        this.sendTimes = new long[depth];
+    }
+
+    @Override
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
+        toSkip = skipBytes;
+        nextIntended = System.nanoTime();
+        sendTask = () -> {
+            ticker = null;
+            sendDue(ctx);
+        };
+        sendDue(ctx);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (ticker != null) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        ByteBuf in = (ByteBuf) msg;
+        long bytes = in.readableBytes();
+        ReferenceCountUtil.release(in);
+
+        if (toSkip > 0) { // 丢弃服务端的欢迎语
+            long skipped = Math.min(toSkip, bytes);
+            toSkip -= skipped;
+            bytes -= skipped;
+        }
+
+        received += bytes;
+        long now = System.nanoTime();
+        while (received >= payloadSize && outstanding > 0) {
+            received -= payloadSize;
+            histogram.record(now - sendTimes[head]);
+            head = (head + 1) % depth;
+            outstanding--;
+        }
+        sendDue(ctx);
+    }
+
+    // 发送所有已经到期且不超过 pipelining 深度的请求, 然后一次冲刷; 开环模式下还有空位时定时到下一个计划时间
+    private void sendDue(ChannelHandlerContext ctx) {
+        long now = System.nanoTime();
+        boolean wrote = false;
+        while (outstanding < depth && (intervalNanos == 0 || nextIntended <= now)) {
+            long sendTime = intervalNanos == 0 ? now : nextIntended;
+            sendTimes[(head + outstanding) % depth] = sendTime;
+            outstanding++;
+            nextIntended += intervalNanos;
+            ctx.write(payload.duplicate(), ctx.voidPromise());
+            wrote = true;
+        }
+        if (wrote)
+            ctx.flush();
+        if (intervalNanos > 0 && outstanding < depth && ticker == null && ctx.channel().isActive())
+            ticker = ctx.executor().schedule(sendTask, nextIntended - now, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        cause.printStackTrace();
+        ctx.close();
+    }
+}
\ No newline at end of file
@@ -1,16 +1,43 @@
 package com.zhengjianting.nia.chapter2.echoserver;
 
+import com.zhengjianting.nia.codec.LengthFrameDecoder;
+import com.zhengjianting.nia.codec.LengthFrameEncoder;
+import com.zhengjianting.nia.metrics.PrometheusEndpoint;
+import com.zhengjianting.nia.metrics.TrafficMetrics;
+import com.zhengjianting.nia.transport.OffloadStage;
+import com.zhengjianting.nia.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 
 import java.net.InetSocketAddress;
 
+/**
+ * 通过系统属性配置:
+ * -Dnia.echo.persistent=true       长连接模式: 连接不关闭, 合并 flush, 按水位线做背压
+ * -Dnia.echo.log=false             不打印每条消息
+ * -Dnia.echo.lowWaterMark=N        出站缓冲低水位 (字节), 默认 32KB
+ * -Dnia.echo.highWaterMark=N       出站缓冲高水位 (字节), 默认 64KB
+ * -Dnia.echo.framing=false         不分帧, 把每次读到的数据当作一条消息 (默认使用 4 字节长度前缀分帧, 与 EchoClient 一致)
+ * -Dnia.echo.maxFrameLength=N      允许的最大帧长度 (字节), 默认 1MB
+ * -Dnia.metrics.port=N             在 127.0.0.1:N/metrics 以 Prometheus 格式提供流量指标 (TrafficMetrics)
+ * -Dnia.offload.executor=group|virtual  EchoServerHandler 不在 I/O 线程上执行, 其余 nia.offload.* 属性见 OffloadStage
+ */
 public class EchoServer {
+    private static final boolean PERSISTENT = Boolean.getBoolean("nia.echo.persistent");
+    private static final boolean LOG = Boolean.parseBoolean(System.getProperty("nia.echo.log", "true"));
+    private static final int LOW_WATER_MARK = Integer.getInteger("nia.echo.lowWaterMark", 32 * 1024);
+    private static final int HIGH_WATER_MARK = Integer.getInteger("nia.echo.highWaterMark", 64 * 1024);
+    private static final boolean FRAMING = Boolean.parseBoolean(System.getProperty("nia.echo.framing", "true"));
+    private static final int MAX_FRAME_LENGTH = Integer.getInteger("nia.echo.maxFrameLength", LengthFrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+    private static final int METRICS_PORT = Integer.getInteger("nia.metrics.port", 0);
+
     private final int port;
 
     public EchoServer(int port) {
@@ -27,23 +54,44 @@ public class EchoServer {
     }
 
     public void start() throws Exception {
-        final EchoServerHandler serverHandler = new EchoServerHandler();
-        EventLoopGroup group = new NioEventLoopGroup();
+        final EchoServerHandler serverHandler = new EchoServerHandler(PERSISTENT, LOG);
+        final LengthFrameEncoder frameEncoder = new LengthFrameEncoder(MAX_FRAME_LENGTH);
+        final TrafficMetrics metrics = METRICS_PORT > 0 ? new TrafficMetrics() : null;
+        PrometheusEndpoint endpoint = metrics != null ? new PrometheusEndpoint(metrics).start(METRICS_PORT) : null;
+        final OffloadStage offload = OffloadStage.fromSystemProperties();
+        EventLoopGroup bossGroup = Transports.newBossGroup(); // accept 和 I/O 使用不同的 group
+        EventLoopGroup workerGroup = Transports.newWorkerGroup();
         try {
             ServerBootstrap b = new ServerBootstrap();
-            b.group(group)
-                    .channel(NioServerSocketChannel.class)
+            Transports.configure(b.group(bossGroup, workerGroup))
                     .localAddress(new InetSocketAddress(port))
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(LOW_WATER_MARK, HIGH_WATER_MARK))
                     .childHandler(new ChannelInitializer<SocketChannel>() { // 添加一个 EchoServerHandler 到子 Channel 的 ChannelPipeline
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
-                            socketChannel.pipeline().addLast(serverHandler); // EchoServerHandler 被标注为 @Sharable, 所以我们可以总是使用相同的实例
+                            ChannelPipeline pipeline = socketChannel.pipeline();
+                            if (PERSISTENT)
+                                pipeline.addLast(new FlushConsolidationHandler()); // 读循环之外的 flush 也合并成一次系统调用
+                            if (FRAMING)
+                                pipeline.addLast(new LengthFrameDecoder(MAX_FRAME_LENGTH), frameEncoder); // 解码器有状态, 每个 Channel 一个
+                            if (metrics != null)
+                                pipeline.addLast(metrics); // 在解码之后, 按消息统计
+                            // EchoServerHandler 被标注为 @Sharable, 所以我们可以总是使用相同的实例
+                            if (offload != null)
+                                offload.addLast(pipeline, serverHandler); // 按 Channel 保序地在 executor 上执行
+                            else
+                                pipeline.addLast(serverHandler);
                         }
                     });
-            ChannelFuture f = b.bind().sync();
-            f.channel().closeFuture().sync();
+            for (Channel listener : Transports.bind(b))
+                listener.closeFuture().sync();
         } finally {
-            group.shutdownGracefully().sync();
+            workerGroup.shutdownGracefully();
+            bossGroup.shutdownGracefully().sync();
+            if (offload != null)
+                offload.shutdownGracefully();
+            if (endpoint != null)
+                endpoint.close();
         }
     }
 }
\ No newline at end of file
@@ -1,26 +1,72 @@
 package com.zhengjianting.nia.chapter2.echoserver;
 
+import com.zhengjianting.nia.codec.ByteBufText;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.util.CharsetUtil;
+import io.netty.util.AttributeKey;
 
+/**
+ * 默认 (书中的版本) 回显一次读到的数据后关闭连接. 分帧时 (见 EchoServer) 每条消息是一个帧的消息体.
+ * persistent 模式下连接保持打开: 一次读循环里的所有 write 在 channelReadComplete 时一起 flush,
+ * 出站缓冲超过高水位 (WRITE_BUFFER_WATER_MARK) 时暂停读取, 降到低水位以下再恢复, 以此实现背压.
+ */
 @ChannelHandler.Sharable // 标示一个 ChannelHandler 可以被多个 Channel 安全地共享
 public class EchoServerHandler extends ChannelInboundHandlerAdapter {
+    private static final AttributeKey<ChannelFuture> LAST_WRITE = AttributeKey.valueOf(EchoServerHandler.class, "lastWrite");
+
+    private final boolean persistent;
+    private final boolean log;
+
+    public EchoServerHandler() {
+        this(false, true);
+    }
+
+    /**
+     * @param persistent 为 true 时不关闭连接
+     * @param log 是否打印每条收到的消息
+     */
+    public EchoServerHandler(boolean persistent, boolean log) {
+        this.persistent = persistent;
+        this.log = log;
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         ByteBuf in = (ByteBuf) msg;
-        System.out.println("Server received: " + in.toString(CharsetUtil.UTF_8));
-        ctx.write(in); // 将接收到的消息写给发送者, 而不冲刷出站消息
+        if (log)
+            System.out.println("Server received: " + ByteBufText.decode(in)); // 原地解码, ASCII 走快速路径
+        if (persistent)
+            ctx.write(in, ctx.voidPromise()); // 将接收到的消息写给发送者, 而不冲刷出站消息
+        else
+            ctx.channel().attr(LAST_WRITE).set(ctx.write(in)); // 记住最后一次写, 全部写完后再关闭
     }
 
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
-        // 将未决消息冲刷到远程节点, 并且关闭该 Channel
-        ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        if (persistent) {
+            ctx.flush(); // 一次读循环只 flush 一次
+            return;
+        }
+        // 将未决消息冲刷到远程节点, 并且关闭该 Channel.
+        // 不能像书中那样写一个 EMPTY_BUFFER: 分帧时它会被编码成一个空帧. 写按顺序完成, 所以等最后一次写即可
+        ChannelFuture lastWrite = ctx.channel().attr(LAST_WRITE).getAndSet(null);
+        ctx.flush();
+        if (lastWrite != null)
+            lastWrite.addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        Channel channel = ctx.channel();
+        if (!channel.isWritable())
+            ctx.flush(); // 超过高水位: 先把已写入的数据冲刷出去, 否则永远降不到低水位
+        channel.config().setAutoRead(channel.isWritable()); // 对端读得慢时停止读取, 把压力传回对端
+        ctx.fireChannelWritabilityChanged();
     }
 
     @Override
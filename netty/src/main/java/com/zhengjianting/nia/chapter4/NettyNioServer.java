@@ -1,28 +1,40 @@
 package com.zhengjianting.nia.chapter4;
 
+import com.zhengjianting.nia.metrics.PrometheusEndpoint;
+import com.zhengjianting.nia.metrics.TrafficMetrics;
+import com.zhengjianting.nia.transport.Transports;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 
+/**
+ * -Dnia.metrics.port=N 时在 127.0.0.1:N/metrics 以 Prometheus 格式提供流量指标
+ */
 public class NettyNioServer {
+    private static final int METRICS_PORT = Integer.getInteger("nia.metrics.port", 0);
+
     public void server(int port) throws Exception {
-        final ByteBuf buf = Unpooled.unreleasableBuffer(Unpooled.copiedBuffer("Hi!\r\n", StandardCharsets.UTF_8));
-        EventLoopGroup group = new NioEventLoopGroup(); // OioEventLoopGroup -> NioEventLoopGroup
+        byte[] greeting = "Hi!\r\n".getBytes(StandardCharsets.UTF_8);
+        // 所有连接共享的 direct buffer, 写出时不需要再从 heap 复制到 direct 内存
+        final ByteBuf buf = Unpooled.unreleasableBuffer(Unpooled.directBuffer(greeting.length).writeBytes(greeting));
+        final TrafficMetrics metrics = METRICS_PORT > 0 ? new TrafficMetrics() : null;
+        PrometheusEndpoint endpoint = metrics != null ? new PrometheusEndpoint(metrics).start(METRICS_PORT) : null;
+        EventLoopGroup bossGroup = Transports.newBossGroup(); // OioEventLoopGroup -> NioEventLoopGroup (Linux 上为 EpollEventLoopGroup), 只负责 accept
+        EventLoopGroup workerGroup = Transports.newWorkerGroup();
         try {
             ServerBootstrap b = new ServerBootstrap();
-            b.group(group)
-                    .channel(NioServerSocketChannel.class) // OioServerSocketChannel -> NioServerSocketChannel
+            Transports.configure(b.group(bossGroup, workerGroup)) // OioServerSocketChannel -> NioServerSocketChannel / EpollServerSocketChannel
                     .localAddress(new InetSocketAddress(port))
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
+                            if (metrics != null)
+                                socketChannel.pipeline().addLast(metrics);
                             socketChannel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
                                 @Override
                                 public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -31,10 +43,13 @@ public class NettyNioServer {
                             });
                         }
                     });
-            ChannelFuture f = b.bind().sync();
-            f.channel().closeFuture().sync();
+            for (Channel listener : Transports.bind(b))
+                listener.closeFuture().sync();
         } finally {
-            group.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+            bossGroup.shutdownGracefully();
+            if (endpoint != null)
+                endpoint.close();
         }
     }
 
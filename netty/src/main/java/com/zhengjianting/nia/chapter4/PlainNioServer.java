@@ -1,5 +1,7 @@
 package com.zhengjianting.nia.chapter4;
 
+import com.zhengjianting.nio.metrics.SelectorMetrics;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
@@ -20,15 +22,23 @@ public class PlainNioServer {
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
         final ByteBuffer msg = ByteBuffer.wrap("Hi!\r\n".getBytes());
+        // 事件循环的指标通过 JMX 导出, -Dnio.metrics.dumpInterval=N 时每 N 秒打印一次
+        SelectorMetrics metrics = new SelectorMetrics("PlainNioServer").register();
+        int dumpInterval = Integer.getInteger("nio.metrics.dumpInterval", 0);
+        if (dumpInterval > 0)
+            metrics.startDump(System.out, dumpInterval);
         for (;;) {
+            long selectStart = metrics.beginSelect();
+            int n;
             try {
-                selector.select();
+                n = selector.select();
             } catch (IOException ex) {
                 ex.printStackTrace();
                 // handle exception
                 break;
             }
 
+            long processStart = metrics.endSelect(selectStart, n);
             Set<SelectionKey> readyKeys = selector.selectedKeys();
             Iterator<SelectionKey> iterator = readyKeys.iterator();
             while (iterator.hasNext()) {
@@ -61,6 +71,7 @@ public class PlainNioServer {
                     }
                 }
             }
+            metrics.endProcessing(processStart, n, selector.keys().size());
         }
     }
 
@@ -5,15 +5,45 @@ import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PlainOioServer {
+    /**
+     * THREAD: 每个连接一个平台线程
+     * VIRTUAL: 每个连接一个虚拟线程 (需要 Java 21+)
+     * POOL: 固定大小的平台线程池, 用于对比
+     */
+    public enum Mode { THREAD, VIRTUAL, POOL }
+
+    private final ExecutorService executor; // THREAD 模式下为 null
+
+    public PlainOioServer() {
+        this(Mode.THREAD, 0);
+    }
+
+    public PlainOioServer(Mode mode, int poolSize) {
+        switch (mode) {
+            case VIRTUAL:
+                executor = newVirtualThreadPerTaskExecutor();
+                break;
+            case POOL:
+                if (poolSize < 1)
+                    throw new IllegalArgumentException("poolSize: " + poolSize);
+                executor = Executors.newFixedThreadPool(poolSize);
+                break;
+            default:
+                executor = null;
+        }
+    }
+
     public void server(int port) throws IOException {
         final ServerSocket socket = new ServerSocket(port);
         try {
             for (;;) {
                 final Socket clientSocket = socket.accept();
                 System.out.println("Accepted connection from " + clientSocket);
-                new Thread(new Runnable() {
+                Runnable handler = new Runnable() {
                     @Override
                     public void run() {
                         OutputStream out;
@@ -32,14 +62,39 @@ public class PlainOioServer {
                             }
                         }
                     }
-                }).start();
+                };
+                if (executor == null)
+                    new Thread(handler).start();
+                else
+                    executor.execute(handler);
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+        }
+    }
+
+    // 模块以 Java 8 为编译目标, 所以通过反射调用 Java 21 的 Executors.newVirtualThreadPerTaskExecutor()
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
         }
     }
 
     public static void main(String[] args) throws IOException {
-        new PlainOioServer().server(10526);
+        if (args.length == 0) {
+            new PlainOioServer().server(10526);
+            return;
+        }
+        // Usage: PlainOioServer <thread|virtual|pool> [pool size]
+        Mode mode = Mode.valueOf(args[0].toUpperCase());
+        int poolSize = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors() * 2;
+        new PlainOioServer(mode, poolSize).server(10526);
     }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.zhengjianting.nia.codec;
+
+import com.zhengjianting.nio.buffer.TextCodec;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.CharsetUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 让 ByteBuf 直接使用 nio 模块的 TextCodec: 可读字节只由一个 NIO buffer 组成时 (绝大多数 ByteBuf),
+ * 通过 internalNioBuffer() 原地解码/查找/比较, 不复制也不分配; CompositeByteBuf 等则回退到 ByteBuf 自己的实现.
+ * 编码直接写进 ByteBuf, 不产生中间 byte[].
+ *
+ * 所有方法都不改变 readerIndex / writerIndex (encode 方法除外, 它们会推进 writerIndex).
+ */
+public final class ByteBufText {
+    private ByteBufText() {
+    }
+
+    // 以 UTF-8 解码全部可读字节, 纯 ASCII 时走快速路径
+    public static String decode(ByteBuf buf) {
+        return decode(buf, buf.readerIndex(), buf.readableBytes());
+    }
+
+    public static String decode(ByteBuf buf, int index, int length) {
+        if (length == 0)
+            return "";
+        ByteBuffer nio = nioBuffer(buf, index, length);
+        if (nio == null)
+            return buf.toString(index, length, CharsetUtil.UTF_8);
+        return TextCodec.decode(nio, nio.position(), length);
+    }
+
+    // 返回写入的字节数
+    public static int encodeUtf8(CharSequence s, ByteBuf out) {
+        return ByteBufUtil.writeUtf8(out, s);
+    }
+
+    // 非 ASCII 字符写成 '?'
+    public static int encodeAscii(CharSequence s, ByteBuf out) {
+        return ByteBufUtil.writeAscii(out, s);
+    }
+
+    // 在可读字节中查找 needle, 返回其在 buf 中的下标, 找不到返回 -1
+    public static int indexOf(ByteBuf buf, byte[] needle) {
+        int index = buf.readerIndex();
+        int length = buf.readableBytes();
+        ByteBuffer nio = nioBuffer(buf, index, length);
+        if (nio == null) {
+            for (int i = index; i + needle.length <= index + length; i++) {
+                if (regionEquals(buf, i, needle))
+                    return i;
+            }
+            return -1;
+        }
+        int found = TextCodec.indexOf(nio, nio.position(), nio.limit(), needle);
+        return found < 0 ? -1 : index + found - nio.position();
+    }
+
+    // 从 index 开始的 length 个字节是否恰好是 s 的 ASCII 字符
+    public static boolean equalsAscii(ByteBuf buf, int index, int length, CharSequence s) {
+        if (length != s.length())
+            return false;
+        ByteBuffer nio = nioBuffer(buf, index, length);
+        if (nio == null) {
+            for (int i = 0; i < length; i++) {
+                if (buf.getByte(index + i) != s.charAt(i))
+                    return false;
+            }
+            return true;
+        }
+        return TextCodec.equalsAscii(nio, nio.position(), length, s);
+    }
+
+    private static boolean regionEquals(ByteBuf buf, int index, byte[] bytes) {
+        for (int j = 0; j < bytes.length; j++) {
+            if (buf.getByte(index + j) != bytes[j])
+                return false;
+        }
+        return true;
+    }
+
+    // 覆盖 [index, index + length) 的单个 NIO buffer, position 指向 index; 多个组件时返回 null
+    private static ByteBuffer nioBuffer(ByteBuf buf, int index, int length) {
+        if (buf.nioBufferCount() != 1)
+            return null;
+        return buf.internalNioBuffer(index, length); // 共享的视图, 只在当前调用内使用
+    }
+}
\ No newline at end of file
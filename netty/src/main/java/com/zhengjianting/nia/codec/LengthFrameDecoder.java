@@ -0,0 +1,43 @@
+package com.zhengjianting.nia.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+
+import java.util.List;
+
+/**
+ * 解码 LengthFrameEncoder 产生的帧: 4 字节大端长度 + 消息体, 输出不含长度字段的消息体.
+ *
+ * 消息体是累积缓冲区的 retainedSlice, 不复制数据; 一次 channelRead 中累积了多少个完整的帧就输出多少个.
+ * 长度为负或超过 maxFrameLength 时抛出 TooLongFrameException, 该连接上的数据已经无法再分帧, 调用方应关闭连接.
+ */
+public class LengthFrameDecoder extends ByteToMessageDecoder {
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private final int maxFrameLength;
+
+    public LengthFrameDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public LengthFrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        while (in.readableBytes() >= LengthFrameEncoder.LENGTH_FIELD_LENGTH) {
+            int length = in.getInt(in.readerIndex());
+            if (length < 0 || length > maxFrameLength) {
+                in.skipBytes(in.readableBytes()); // 丢弃剩余的数据, 避免重复报错
+                throw new TooLongFrameException("frame length " + length + " exceeds " + maxFrameLength);
+            }
+            if (in.readableBytes() < LengthFrameEncoder.LENGTH_FIELD_LENGTH + length)
+                return; // 帧还不完整, 等待更多数据
+            in.skipBytes(LengthFrameEncoder.LENGTH_FIELD_LENGTH);
+            out.add(in.readRetainedSlice(length)); // 与累积缓冲区共享内存
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package com.zhengjianting.nia.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * 在每个 ByteBuf 消息前加上 4 字节大端长度. 长度字段单独占一个小 buffer, 消息体原样 (retain) 跟在后面,
+ * 两者由同一次 flush 的 gathering write 一起写出, 消息体不会被复制.
+ */
+@ChannelHandler.Sharable
+public class LengthFrameEncoder extends MessageToMessageEncoder<ByteBuf> {
+    public static final int LENGTH_FIELD_LENGTH = 4;
+
+    private final int maxFrameLength;
+
+    public LengthFrameEncoder() {
+        this(LengthFrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public LengthFrameEncoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+        int length = msg.readableBytes();
+        if (length > maxFrameLength)
+            throw new EncoderException("frame length " + length + " exceeds " + maxFrameLength);
+        out.add(ctx.alloc().ioBuffer(LENGTH_FIELD_LENGTH).writeInt(length));
+        out.add(msg.retain());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+package com.zhengjianting.nia.metrics;
+
+import com.zhengjianting.nia.transport.Transports;
+import com.zhengjianting.nio.metrics.LatencyHistogram;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 在本机端口上以 Prometheus 文本格式 (0.0.4) 提供 TrafficMetrics 的指标: GET /metrics.
+ * 使用自己的单线程 EventLoopGroup, 抓取不会占用业务的 EventLoop.
+ */
+public class PrometheusEndpoint implements AutoCloseable {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final TrafficMetrics metrics;
+    private final EventLoopGroup group = Transports.newEventLoopGroup(1);
+    private Channel channel;
+
+    public PrometheusEndpoint(TrafficMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // 绑定 127.0.0.1:port
+    public PrometheusEndpoint start(int port) throws InterruptedException {
+        ServerBootstrap b = new ServerBootstrap();
+        Transports.configure(b.group(group))
+                .localAddress(new InetSocketAddress("127.0.0.1", port))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel socketChannel) throws Exception {
+                        socketChannel.pipeline().addLast(
+                                new HttpServerCodec(),
+                                new HttpObjectAggregator(4096),
+                                new ScrapeHandler());
+                    }
+                });
+        channel = b.bind().sync().channel();
+        return this;
+    }
+
+    // 当前所有指标的 Prometheus 文本
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(2048);
+        counter(sb, "nia_bytes_read_total", "Bytes read", metrics.getBytesRead());
+        counter(sb, "nia_bytes_written_total", "Bytes written", metrics.getBytesWritten());
+        counter(sb, "nia_messages_read_total", "Messages read", metrics.getMessagesRead());
+        counter(sb, "nia_messages_written_total", "Messages written", metrics.getMessagesWritten());
+        counter(sb, "nia_connections_opened_total", "Connections opened", metrics.getConnectionsOpened());
+        counter(sb, "nia_connections_closed_total", "Connections closed", metrics.getConnectionsClosed());
+        sb.append("# HELP nia_connections_active Open connections\n# TYPE nia_connections_active gauge\n");
+        sb.append("nia_connections_active ").append(metrics.getConnectionsOpened() - metrics.getConnectionsClosed()).append('\n');
+        summary(sb, "nia_read_to_write_seconds", "Time from an unanswered read to the next write on a connection",
+                metrics.getReadToWrite(), 1e9);
+        summary(sb, "nia_connection_bytes", "Bytes read and written by each closed connection",
+                metrics.getConnectionBytes(), 1);
+        summary(sb, "nia_connection_duration_seconds", "Lifetime of each closed connection",
+                metrics.getConnectionDuration(), 1e9);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // unit 是每个输出单位对应的记录值, 例如 1e9 把纳秒转换为秒
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram histogram, double unit) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            sb.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(snapshot.getValueAtPercentile(quantile * 100) / unit).append('\n');
+        }
+        sb.append(name).append("_sum ").append(snapshot.getMean() * snapshot.getCount() / unit).append('\n');
+        sb.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+    }
+
+    @Override
+    public void close() {
+        if (channel != null)
+            channel.close().syncUninterruptibly();
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    private class ScrapeHandler extends SimpleChannelInboundHandler<HttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpRequest request) throws Exception {
+            FullHttpResponse response;
+            if (request.method() != HttpMethod.GET) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            } else if (!request.uri().equals("/metrics") && !request.uri().startsWith("/metrics?")) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+            } else {
+                ByteBuf body = ByteBufUtil.writeUtf8(ctx.alloc(), scrape());
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, body);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+            }
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            if (keepAlive)
+                ctx.writeAndFlush(response, ctx.voidPromise());
+            else
+                ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            cause.printStackTrace();
+            ctx.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,152 @@
+package com.zhengjianting.nia.metrics;
+
+import com.zhengjianting.nio.metrics.LatencyHistogram;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 可以放进任意 ChannelPipeline 的流量统计, 所有 Channel 共享一个实例.
+ *
+ * 全局计数使用 LongAdder (按线程分散的计数器, 多个 EventLoop 同时累加不会争用同一个缓存行),
+ * 延迟记录在无锁的 LatencyHistogram 中. 每个 Channel 的状态在 channelActive 时创建一次,
+ * 之后每条消息的记录路径上没有任何分配, 所以满负载下也可以一直开启.
+ *
+ * 统计的是经过本 handler 所在位置的消息: 放在解码器之后, 消息数就是解码出的消息数, 字节数是消息体的字节数.
+ * 写出的字节在 write() 时计入 (即进入出站缓冲时), 不等待写完成, 避免为每次写添加监听器.
+ * read-to-write 延迟是一个 Channel 上从收到尚未应答的第一条消息到写出下一条消息的时间.
+ */
+@ChannelHandler.Sharable
+public class TrafficMetrics extends ChannelDuplexHandler {
+    private static final AttributeKey<ChannelStats> STATS = AttributeKey.valueOf(TrafficMetrics.class, "stats");
+
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder messagesRead = new LongAdder();
+    private final LongAdder messagesWritten = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LatencyHistogram readToWrite = new LatencyHistogram(); // 纳秒
+    private final LatencyHistogram connectionBytes = new LatencyHistogram(); // 每个关闭的连接读写的总字节数
+    private final LatencyHistogram connectionDuration = new LatencyHistogram(); // 每个关闭的连接的存活时间, 纳秒
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.channel().attr(STATS).set(new ChannelStats(System.nanoTime()));
+        connectionsOpened.increment();
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ChannelStats stats = ctx.channel().attr(STATS).getAndSet(null);
+        if (stats != null) {
+            connectionsClosed.increment();
+            connectionBytes.record(stats.bytesRead + stats.bytesWritten);
+            connectionDuration.record(System.nanoTime() - stats.opened);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long bytes = sizeOf(msg);
+        bytesRead.add(bytes);
+        messagesRead.increment();
+        ChannelStats stats = ctx.channel().attr(STATS).get();
+        if (stats != null) {
+            stats.bytesRead += bytes;
+            if (stats.pendingSince == 0)
+                stats.pendingSince = System.nanoTime();
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long bytes = sizeOf(msg);
+        bytesWritten.add(bytes);
+        messagesWritten.increment();
+        ChannelStats stats = ctx.channel().attr(STATS).get();
+        if (stats != null) {
+            stats.bytesWritten += bytes;
+            if (stats.pendingSince != 0) {
+                readToWrite.record(System.nanoTime() - stats.pendingSince);
+                stats.pendingSince = 0;
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf)
+            return ((ByteBuf) msg).readableBytes();
+        if (msg instanceof ByteBufHolder)
+            return ((ByteBufHolder) msg).content().readableBytes();
+        if (msg instanceof FileRegion)
+            return ((FileRegion) msg).count();
+        return 0;
+    }
+
+    // 某个 Channel 目前读/写的字节数, {read, written}; Channel 未经过本 handler 或已关闭时返回 null
+    public long[] channelBytes(Channel channel) {
+        ChannelStats stats = channel.attr(STATS).get();
+        return stats == null ? null : new long[] { stats.bytesRead, stats.bytesWritten };
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getMessagesRead() {
+        return messagesRead.sum();
+    }
+
+    public long getMessagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long getConnectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    public LatencyHistogram getReadToWrite() {
+        return readToWrite;
+    }
+
+    public LatencyHistogram getConnectionBytes() {
+        return connectionBytes;
+    }
+
+    public LatencyHistogram getConnectionDuration() {
+        return connectionDuration;
+    }
+
+    // 只被该 Channel 的 EventLoop 访问 (channelBytes() 除外, 那里读到稍旧的值也无妨)
+    private static final class ChannelStats {
+        final long opened;
+        long bytesRead;
+        long bytesWritten;
+        long pendingSince; // 尚未应答的第一条消息的到达时间, 0 表示没有
+
+        ChannelStats(long opened) {
+            this.opened = opened;
+        }
+    }
+}
\ No newline at end of file
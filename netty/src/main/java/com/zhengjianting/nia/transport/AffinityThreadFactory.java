@@ -0,0 +1,117 @@
+package com.zhengjianting.nia.transport;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把每个新线程绑定到一个 CPU 上: 线程启动后先设置自己的亲和性, 然后才运行 EventLoop.
+ * CPU 按列表轮流分配, 所以线程数不超过 CPU 数时每个 EventLoop 独占一个核, 不会在核 (以及 NUMA 节点) 之间迁移.
+ *
+ * 设置亲和性由一个所有线程共享的辅助 shell 进程完成: 线程把 "cpu tid" 写给它, 它调用 taskset 后回复结果.
+ * JVM 只 fork 一次, 不在每个 EventLoop 线程里启动进程; 辅助进程在 JVM 退出、标准输入关闭时结束.
+ *
+ * 只支持 Linux (需要 /proc/thread-self, sh 和 taskset), 其他平台或绑定失败时只打印一次警告, 线程照常运行.
+ */
+public class AffinityThreadFactory extends DefaultThreadFactory {
+    private static final AtomicInteger WARNED = new AtomicInteger();
+    private static final String PINNER_SCRIPT = "while read cpu tid; do "
+            + "if taskset -p -c \"$cpu\" \"$tid\" >/dev/null 2>&1; then echo ok; "
+            + "else echo \"taskset failed for cpu $cpu\"; fi; done";
+
+    private static Writer pinnerIn; // 辅助进程, 由 AffinityThreadFactory.class 的锁保护
+    private static BufferedReader pinnerOut;
+    private static boolean pinnerFailed;
+
+    private final int[] cpus;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param cpus 形如 "0-3,8,10-11" 的 CPU 列表, 为 null 或空时使用 0 到 availableProcessors() - 1
+     */
+    public AffinityThreadFactory(String poolName, String cpus) {
+        super(poolName);
+        this.cpus = parseCpus(cpus);
+    }
+
+    @Override
+    protected Thread newThread(Runnable r, String name) {
+        final int cpu = cpus[Math.floorMod(next.getAndIncrement(), cpus.length)];
+        return super.newThread(() -> {
+            pin(cpu);
+            r.run();
+        }, name + "-cpu" + cpu);
+    }
+
+    // 把当前线程绑定到 cpu
+    static void pin(int cpu) {
+        String tid;
+        try {
+            // /proc/thread-self 是指向 <pid>/task/<tid> 的符号链接, tid 即当前线程的内核线程 id.
+            // 不能用 File.getCanonicalFile(): Java 8 会缓存规范路径, 之后的线程会拿到同一个 tid
+            tid = Files.readSymbolicLink(Paths.get("/proc/thread-self")).getFileName().toString();
+        } catch (IOException | UnsupportedOperationException e) {
+            warn(e.toString());
+            return;
+        }
+        synchronized (AffinityThreadFactory.class) {
+            if (pinnerFailed)
+                return;
+            try {
+                if (pinnerIn == null) {
+                    Process process = new ProcessBuilder("sh", "-c", PINNER_SCRIPT)
+                            .redirectErrorStream(true)
+                            .start();
+                    pinnerIn = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.US_ASCII);
+                    pinnerOut = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+                }
+                pinnerIn.write(cpu + " " + tid + "\n");
+                pinnerIn.flush();
+                String reply = pinnerOut.readLine();
+                if (reply == null)
+                    throw new IOException("affinity helper exited");
+                if (!reply.equals("ok"))
+                    warn(reply);
+            } catch (IOException e) {
+                pinnerFailed = true;
+                warn(e.toString());
+            }
+        }
+    }
+
+    private static void warn(String message) {
+        if (WARNED.getAndIncrement() == 0)
+            System.err.println("Could not set CPU affinity: " + message);
+    }
+
+    static int[] parseCpus(String spec) {
+        List<Integer> list = new ArrayList<>();
+        if (spec == null || spec.trim().isEmpty()) {
+            for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++)
+                list.add(i);
+        } else {
+            for (String part : spec.split(",")) {
+                part = part.trim();
+                int dash = part.indexOf('-');
+                int first = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+                int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1));
+                for (int i = first; i <= last; i++)
+                    list.add(i);
+            }
+        }
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = list.get(i);
+        return result;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,110 @@
+package com.zhengjianting.nia.transport;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * 模块里所有 Bootstrap 共用的 ByteBuf 分配器 (由 Transports.configure() 设置为 ALLOCATOR 和 RCVBUF_ALLOCATOR).
+ *
+ * 通过系统属性配置 (未设置的项使用 Netty 的默认值):
+ * -Dnia.allocator.pooled=false          使用 UnpooledByteBufAllocator
+ * -Dnia.allocator.directArenas=N        direct arena 数, 为 0 时不池化 direct 内存
+ * -Dnia.allocator.heapArenas=N          heap arena 数
+ * -Dnia.allocator.pageSize=N            页大小 (字节, 2 的幂)
+ * -Dnia.allocator.chunkSize=N           chunk 大小 (字节), 会取整为 pageSize × 2^k; 每个 arena 按 chunk 向系统申请内存
+ * -Dnia.allocator.smallCacheSize=N      每个线程缓存的 small 块个数, 为 0 时关闭
+ * -Dnia.allocator.normalCacheSize=N     每个线程缓存的 normal 块个数, 为 0 时关闭
+ * -Dnia.allocator.cacheAllThreads=false 只为 EventLoop 线程建立线程缓存
+ * -Dnia.allocator.recvMin/recvInitial/recvMax=N  AdaptiveRecvByteBufAllocator 的读缓冲大小范围
+ * -Dnia.allocator.metricsInterval=N     每 N 秒打印一次池化分配器的指标
+ *
+ * arena 数和 chunk 大小决定了 direct 内存的上限量级 (大约 directArenas × chunkSize × 活跃 chunk 数),
+ * 还应配合 -Dio.netty.maxDirectMemory 给出硬上限.
+ */
+public final class Allocators {
+    private static final boolean POOLED = Boolean.parseBoolean(System.getProperty("nia.allocator.pooled", "true"));
+    private static final int METRICS_INTERVAL = Integer.getInteger("nia.allocator.metricsInterval", 0);
+
+    public static final ByteBufAllocator ALLOCATOR = POOLED ? newPooledAllocator() : UnpooledByteBufAllocator.DEFAULT;
+
+    static {
+        if (METRICS_INTERVAL > 0 && ALLOCATOR instanceof PooledByteBufAllocator)
+            startDump((PooledByteBufAllocator) ALLOCATOR, System.out, METRICS_INTERVAL);
+    }
+
+    private Allocators() {
+    }
+
+    private static PooledByteBufAllocator newPooledAllocator() {
+        int pageSize = Integer.getInteger("nia.allocator.pageSize", PooledByteBufAllocator.defaultPageSize());
+        int maxOrder = PooledByteBufAllocator.defaultMaxOrder();
+        Integer chunkSize = Integer.getInteger("nia.allocator.chunkSize");
+        if (chunkSize != null) {
+            maxOrder = 0;
+            while (maxOrder < 14 && (long) pageSize << (maxOrder + 1) <= chunkSize)
+                maxOrder++;
+        }
+        return new PooledByteBufAllocator(
+                PooledByteBufAllocator.defaultPreferDirect(),
+                Integer.getInteger("nia.allocator.heapArenas", PooledByteBufAllocator.defaultNumHeapArena()),
+                Integer.getInteger("nia.allocator.directArenas", PooledByteBufAllocator.defaultNumDirectArena()),
+                pageSize,
+                maxOrder,
+                Integer.getInteger("nia.allocator.smallCacheSize", PooledByteBufAllocator.defaultSmallCacheSize()),
+                Integer.getInteger("nia.allocator.normalCacheSize", PooledByteBufAllocator.defaultNormalCacheSize()),
+                Boolean.parseBoolean(System.getProperty("nia.allocator.cacheAllThreads",
+                        String.valueOf(PooledByteBufAllocator.defaultUseCacheForAllThreads()))));
+    }
+
+    // 每个 Channel 一个实例的读缓冲分配器工厂: 根据上一次读到的字节数调整下一次读缓冲的大小
+    public static RecvByteBufAllocator newRecvAllocator() {
+        return new AdaptiveRecvByteBufAllocator(
+                Integer.getInteger("nia.allocator.recvMin", 64),
+                Integer.getInteger("nia.allocator.recvInitial", 2048),
+                Integer.getInteger("nia.allocator.recvMax", 64 * 1024));
+    }
+
+    // 每 periodSeconds 秒从一个守护线程打印分配器的指标
+    public static void startDump(final PooledByteBufAllocator allocator, final PrintStream out, final long periodSeconds) {
+        Thread thread = new Thread(() -> {
+            long[] lastAllocations = new long[allocator.metric().numDirectArenas()];
+            try {
+                while (true) {
+                    Thread.sleep(periodSeconds * 1000);
+                    dump(allocator.metric(), out, lastAllocations);
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }, "allocator-metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 打印已用 direct/heap 内存, 以及每个 direct arena 的在用分配数和线程数. arena 只统计没有被线程缓存满足的分配,
+     * 所以 "arena allocations" 的增量就是该周期内的线程缓存未命中数; 共享同一 arena 的线程越多, 未命中时的竞争越激烈.
+     */
+    private static void dump(PooledByteBufAllocatorMetric metric, PrintStream out, long[] lastAllocations) {
+        out.println("allocator: used direct = " + metric.usedDirectMemory() + ", used heap = " + metric.usedHeapMemory()
+                + ", thread caches = " + metric.numThreadLocalCaches() + ", chunk size = " + metric.chunkSize());
+        List<PoolArenaMetric> arenas = metric.directArenas();
+        for (int i = 0; i < arenas.size(); i++) {
+            PoolArenaMetric arena = arenas.get(i);
+            long allocations = arena.numAllocations();
+            out.println("  direct arena " + i + ": threads = " + arena.numThreadCaches()
+                    + ", active allocations = " + arena.numActiveAllocations()
+                    + " (huge " + arena.numActiveHugeAllocations() + ")"
+                    + ", arena allocations = " + (allocations - lastAllocations[i]) + " in period");
+            lastAllocations[i] = allocations;
+        }
+    }
+}
\ No newline at end of file
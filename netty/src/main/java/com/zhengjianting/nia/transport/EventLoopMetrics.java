@@ -0,0 +1,92 @@
+package com.zhengjianting.nia.transport;
+
+import com.zhengjianting.nio.metrics.LatencyHistogram;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个 EventLoop 的负载指标, 用来判断各个 loop 是否均衡:
+ * pending 是任务队列中等待的任务数; 任务延迟由探针测得 -- 每 PROBE_INTERVAL_MILLIS 向每个 loop 提交一个空任务,
+ * 记录从提交到开始执行的时间. loop 忙于 I/O 或积压任务时, 这个延迟就会升高.
+ *
+ * 探针和打印都在一个守护线程中进行, 每 periodSeconds 秒打印一次每个 loop 在该周期内的延迟分位数 (微秒).
+ */
+public class EventLoopMetrics {
+    private static final long PROBE_INTERVAL_MILLIS = 10;
+
+    private final String name;
+    private final List<EventExecutor> loops = new ArrayList<>();
+    private final List<LatencyHistogram> latencies = new ArrayList<>();
+
+    public EventLoopMetrics(String name, EventExecutorGroup group) {
+        this.name = name;
+        for (EventExecutor loop : group) {
+            loops.add(loop);
+            latencies.add(new LatencyHistogram());
+        }
+    }
+
+    // 启动探针和定期打印, 返回守护线程
+    public Thread start(final PrintStream out, final long periodSeconds) {
+        Thread thread = new Thread(() -> {
+            List<LatencyHistogram.Snapshot> last = new ArrayList<>();
+            for (LatencyHistogram latency : latencies)
+                last.add(latency.snapshot());
+            long nextDump = System.nanoTime() + TimeUnit.SECONDS.toNanos(periodSeconds);
+            try {
+                while (true) {
+                    Thread.sleep(PROBE_INTERVAL_MILLIS);
+                    probe();
+                    if (System.nanoTime() - nextDump >= 0) {
+                        dump(out, last);
+                        nextDump += TimeUnit.SECONDS.toNanos(periodSeconds);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }, name + "-metrics");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void probe() {
+        for (int i = 0; i < loops.size(); i++) {
+            EventExecutor loop = loops.get(i);
+            if (loop.isShuttingDown())
+                continue;
+            final LatencyHistogram latency = latencies.get(i);
+            final long submitted = System.nanoTime();
+            loop.execute(() -> latency.record(System.nanoTime() - submitted));
+        }
+    }
+
+    private void dump(PrintStream out, List<LatencyHistogram.Snapshot> last) {
+        for (int i = 0; i < loops.size(); i++) {
+            LatencyHistogram.Snapshot now = latencies.get(i).snapshot();
+            out.println(name + "[" + i + "] pending=" + getPendingTasks(i) + " task latency(us) " + now.minus(last.get(i)).summary(1000));
+            last.set(i, now);
+        }
+    }
+
+    // 第 i 个 loop 队列中的任务数, 无法得知时返回 -1
+    public int getPendingTasks(int i) {
+        EventExecutor loop = loops.get(i);
+        return loop instanceof SingleThreadEventExecutor ? ((SingleThreadEventExecutor) loop).pendingTasks() : -1;
+    }
+
+    public LatencyHistogram getTaskLatency(int i) {
+        return latencies.get(i);
+    }
+
+    public int size() {
+        return loops.size();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,265 @@
+package com.zhengjianting.nia.transport;
+
+import com.zhengjianting.nio.metrics.LatencyHistogram;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 把业务 handler 从 I/O EventLoop 移到单独的 EventExecutorGroup 上执行, 慢的业务逻辑不再阻塞同一个 loop 上的其他 Channel.
+ *
+ * 业务 handler 用 pipeline.addLast(group, ...) 加入, 由 Netty 保证: 一个 Channel 固定在 group 的一个 executor 上,
+ * 事件按顺序执行; handler 里的 write/flush 自动交回 Channel 的 EventLoop.
+ * executor 可以是普通线程的 DefaultEventExecutorGroup, 也可以运行在虚拟线程上 (Java 21+, 通过反射创建,
+ * 更低版本回退到普通线程): 每个 executor 是一个虚拟线程, 业务代码阻塞时只挂起该虚拟线程, 不占用载体线程.
+ *
+ * 在 EventLoop 一侧, 每个 Channel 有一个 Gate 限制在途消息数: 已交给 executor 但还没有写出响应的消息达到 maxInFlight 后,
+ * 后续消息暂存在 Gate 中并停止读取 (autoRead), 写出响应后再继续. 在途数按请求/响应一一对应计算 (回显这类协议).
+ * Gate 同时接管因出站缓冲超过高水位 (不可写) 而暂停读取, 所以 channelWritabilityChanged 不再向后传递.
+ *
+ * 排队延迟是消息从 Gate 交出到业务 handler 开始处理的时间; 它持续升高说明这一级已经饱和.
+ */
+public class OffloadStage {
+    private static final String EXECUTOR = System.getProperty("nia.offload.executor", "none");
+    private static final int THREADS = Integer.getInteger("nia.offload.threads", 0);
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("nia.offload.maxInFlight", 16);
+    private static final int METRICS_INTERVAL = Integer.getInteger("nia.offload.metricsInterval", 0);
+    private static final int DEFAULT_THREADS = 16;
+    private static final int DEFAULT_VIRTUAL_THREADS = 256;
+
+    private final EventExecutorGroup group;
+    private final int maxInFlight;
+    private final LatencyHistogram queueDelay = new LatencyHistogram(); // 纳秒
+    private final LongAdder pauses = new LongAdder();
+
+    public OffloadStage(EventExecutorGroup group, int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight: " + maxInFlight);
+        this.group = group;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * 按系统属性创建, 未开启时返回 null:
+     * -Dnia.offload.executor=group|virtual  业务 handler 在 DefaultEventExecutorGroup / 虚拟线程上执行 (默认 none)
+     * -Dnia.offload.threads=N               executor 数, 默认 group 为 16, virtual 为 256
+     * -Dnia.offload.maxInFlight=N           每个 Channel 的在途消息上限, 默认 16
+     * -Dnia.offload.metricsInterval=N       每 N 秒打印排队延迟
+     */
+    public static OffloadStage fromSystemProperties() {
+        EventExecutorGroup group;
+        if ("group".equals(EXECUTOR))
+            group = newExecutorGroup(THREADS > 0 ? THREADS : DEFAULT_THREADS);
+        else if ("virtual".equals(EXECUTOR))
+            group = newVirtualExecutorGroup(THREADS > 0 ? THREADS : DEFAULT_VIRTUAL_THREADS);
+        else
+            return null;
+        OffloadStage stage = new OffloadStage(group, MAX_IN_FLIGHT);
+        if (METRICS_INTERVAL > 0)
+            stage.startDump(System.out, METRICS_INTERVAL);
+        return stage;
+    }
+
+    public static EventExecutorGroup newExecutorGroup(int threads) {
+        return new DefaultEventExecutorGroup(threads, new DefaultThreadFactory("offload"));
+    }
+
+    // 每个 executor 运行在一个虚拟线程上; 没有虚拟线程时 (Java 21 以前) 退回普通线程
+    public static EventExecutorGroup newVirtualExecutorGroup(int executors) {
+        ThreadFactory factory = virtualThreadFactory();
+        if (factory == null) {
+            System.err.println("Virtual threads are not available, offloading to platform threads");
+            factory = new DefaultThreadFactory("offload");
+        }
+        return new DefaultEventExecutorGroup(executors, factory);
+    }
+
+    // Thread.ofVirtual().name("offload-virtual-", 0).factory(), 通过反射调用以便在 Java 8 上编译
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "offload-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 在 pipeline 末尾依次加入该 Channel 的 Gate (在 EventLoop 上), 排队延迟探针和 handlers (在 executor 上).
+     * 每个 Channel 调用一次.
+     */
+    public void addLast(ChannelPipeline pipeline, ChannelHandler... handlers) {
+        Gate gate = new Gate();
+        pipeline.addLast(gate);
+        pipeline.addLast(group, gate.probe);
+        pipeline.addLast(group, handlers);
+    }
+
+    public LatencyHistogram getQueueDelay() {
+        return queueDelay;
+    }
+
+    // Gate 因在途消息达到上限或 Channel 不可写而暂停读取的次数
+    public long getPauses() {
+        return pauses.sum();
+    }
+
+    // 每 periodSeconds 秒从一个守护线程打印该周期内的排队延迟 (微秒) 和暂停次数
+    public Thread startDump(final PrintStream out, final long periodSeconds) {
+        Thread thread = new Thread(() -> {
+            LatencyHistogram.Snapshot last = queueDelay.snapshot();
+            long lastPauses = 0;
+            try {
+                while (true) {
+                    Thread.sleep(periodSeconds * 1000);
+                    LatencyHistogram.Snapshot now = queueDelay.snapshot();
+                    long pausesNow = getPauses();
+                    out.println("offload queue delay(us) " + now.minus(last).summary(1000) + " pauses=" + (pausesNow - lastPauses));
+                    last = now;
+                    lastPauses = pausesNow;
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }, "offload-metrics");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public Future<?> shutdownGracefully() {
+        return group.shutdownGracefully();
+    }
+
+    /**
+     * 每个 Channel 一个, 运行在 EventLoop 上. 交出消息时把时间戳写进环形数组, 探针在 executor 上按相同顺序取出.
+     * 在途消息不超过 maxInFlight, 所以环形数组中尚未被探针取走的槽位不会被覆盖.
+     */
+    private final class Gate extends ChannelDuplexHandler {
+        private final long[] stamps;
+        private final int mask;
+        private final ArrayDeque<Object> held = new ArrayDeque<>(); // 超过在途上限的消息
+        private final Runnable drainTask = this::drain;
+        private final Probe probe = new Probe();
+        private ChannelHandlerContext ctx;
+        private long tail; // 只由 EventLoop 访问
+        private int inFlight;
+        private boolean paused;
+        private boolean drainScheduled;
+
+        Gate() {
+            int size = Integer.highestOneBit(maxInFlight * 2 - 1);
+            stamps = new long[size];
+            mask = size - 1;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            releaseHeld();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (inFlight < maxInFlight && held.isEmpty()) {
+                forward(msg);
+            } else {
+                held.add(msg);
+                updateAutoRead();
+            }
+        }
+
+        private void forward(Object msg) {
+            stamps[(int) tail++ & mask] = System.nanoTime();
+            inFlight++;
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            if (inFlight > 0)
+                inFlight--;
+            ctx.write(msg, promise);
+            if (!held.isEmpty() && !drainScheduled) {
+                drainScheduled = true;
+                ctx.executor().execute(drainTask); // 不在出站操作中回调入站事件
+            } else if (paused) {
+                updateAutoRead();
+            }
+        }
+
+        // 把暂存的消息交给 executor, 然后补一个 channelReadComplete, 让业务 handler 冲刷这批响应
+        private void drain() {
+            drainScheduled = false;
+            boolean forwarded = false;
+            while (inFlight < maxInFlight && !held.isEmpty()) {
+                forward(held.poll());
+                forwarded = true;
+            }
+            if (forwarded)
+                ctx.fireChannelReadComplete();
+            updateAutoRead();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (!ctx.channel().isWritable())
+                ctx.flush(); // 超过高水位时把已写入的数据冲刷出去
+            updateAutoRead();
+        }
+
+        private void updateAutoRead() {
+            Channel channel = ctx.channel();
+            boolean pause = !held.isEmpty() || inFlight >= maxInFlight || !channel.isWritable();
+            if (pause != paused) {
+                paused = pause;
+                if (pause)
+                    pauses.increment();
+                channel.config().setAutoRead(!pause);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            releaseHeld();
+            ctx.fireChannelInactive();
+        }
+
+        private void releaseHeld() {
+            Object msg;
+            while ((msg = held.poll()) != null)
+                ReferenceCountUtil.release(msg);
+        }
+
+        // 运行在 executor 上, 与 Gate 属于同一个 Channel
+        private final class Probe extends ChannelInboundHandlerAdapter {
+            private long head; // 只由 executor 访问
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                queueDelay.record(System.nanoTime() - stamps[(int) head++ & mask]);
+                ctx.fireChannelRead(msg);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+package com.zhengjianting.nia.transport;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 为模块里的 Bootstrap 选择传输: Linux 上 Epoll.isAvailable() 时使用 native epoll, 否则回退到 NIO.
+ * netty-all 已经打包了 epoll 的 native 库, 不需要额外的依赖.
+ *
+ * 通过系统属性配置:
+ * -Dnia.transport.epoll=false          强制使用 NIO
+ * -Dnia.transport.listeners=N          epoll 下用 SO_REUSEPORT 在同一端口绑定 N 个监听 Channel, 由内核分发连接
+ * -Dnia.transport.quickAck=true        epoll 下为子 Channel 开启 TCP_QUICKACK
+ * -Dnia.transport.edgeTriggered=false  epoll 下使用水平触发 (默认边缘触发)
+ * -Dnia.transport.bossThreads=N        服务端 accept 线程数, 默认与监听 Channel 数相同
+ * -Dnia.transport.workerThreads=N      服务端 I/O 线程数, 默认 0 即 Netty 的默认值 (2 × CPU 数)
+ * -Dnia.transport.ioRatio=N            worker 线程用于 I/O 的时间百分比 (1-100), 其余时间执行任务, 默认 50
+ * -Dnia.transport.affinity=true        把每个 worker 线程绑定到一个 CPU (见 AffinityThreadFactory)
+ * -Dnia.transport.cpus=0-3,8           绑定使用的 CPU 列表, 默认全部
+ * -Dnia.transport.metricsInterval=N    每 N 秒打印每个 worker loop 的待执行任务数和任务延迟
+ */
+public final class Transports {
+    private static final boolean EPOLL =
+            Boolean.parseBoolean(System.getProperty("nia.transport.epoll", "true")) && Epoll.isAvailable();
+    private static final int LISTENERS = Integer.getInteger("nia.transport.listeners", 1);
+    private static final boolean QUICK_ACK = Boolean.getBoolean("nia.transport.quickAck");
+    private static final boolean EDGE_TRIGGERED =
+            Boolean.parseBoolean(System.getProperty("nia.transport.edgeTriggered", "true"));
+    private static final int BOSS_THREADS = Integer.getInteger("nia.transport.bossThreads", 0);
+    private static final int WORKER_THREADS = Integer.getInteger("nia.transport.workerThreads", 0);
+    private static final int IO_RATIO = Integer.getInteger("nia.transport.ioRatio", 50);
+    private static final boolean AFFINITY = Boolean.getBoolean("nia.transport.affinity");
+    private static final String CPUS = System.getProperty("nia.transport.cpus");
+    private static final int METRICS_INTERVAL = Integer.getInteger("nia.transport.metricsInterval", 0);
+
+    private Transports() {
+    }
+
+    public static boolean isEpoll() {
+        return EPOLL;
+    }
+
+    /**
+     * @param nThreads 0 表示使用 Netty 的默认线程数
+     */
+    public static EventLoopGroup newEventLoopGroup(int nThreads) {
+        return EPOLL ? new EpollEventLoopGroup(nThreads) : new NioEventLoopGroup(nThreads);
+    }
+
+    @SuppressWarnings("deprecation") // EpollEventLoopGroup.setIoRatio() 已废弃, 但 4.1 的 EpollEventLoop 仍然按它分配时间
+    private static EventLoopGroup newEventLoopGroup(int nThreads, ThreadFactory threadFactory, int ioRatio) {
+        if (EPOLL) {
+            EpollEventLoopGroup group = new EpollEventLoopGroup(nThreads, threadFactory);
+            group.setIoRatio(ioRatio);
+            return group;
+        }
+        NioEventLoopGroup group = new NioEventLoopGroup(nThreads, threadFactory);
+        group.setIoRatio(ioRatio);
+        return group;
+    }
+
+    /**
+     * 服务端只负责 accept 的 group. 每个监听 Channel 注册到一个 EventLoop 上, 所以线程数默认等于监听 Channel 数,
+     * 这样 accept 不会和连接上的 I/O 抢同一个 loop.
+     */
+    public static EventLoopGroup newBossGroup() {
+        int listeners = EPOLL ? Math.max(1, LISTENERS) : 1;
+        int threads = BOSS_THREADS > 0 ? BOSS_THREADS : listeners;
+        return newEventLoopGroup(threads, new DefaultThreadFactory("boss"), 100);
+    }
+
+    // 服务端处理连接 I/O 的 group, 按系统属性设置线程数, ioRatio, CPU 绑定和指标输出
+    public static EventLoopGroup newWorkerGroup() {
+        ThreadFactory threadFactory = AFFINITY ? new AffinityThreadFactory("worker", CPUS) : new DefaultThreadFactory("worker");
+        EventLoopGroup group = newEventLoopGroup(WORKER_THREADS, threadFactory, IO_RATIO);
+        if (METRICS_INTERVAL > 0)
+            new EventLoopMetrics("worker", group).start(System.out, METRICS_INTERVAL);
+        return group;
+    }
+
+    public static Class<? extends ServerChannel> serverChannelClass() {
+        return EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends Channel> channelClass() {
+        return EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    // 设置 Channel 类型, 共用的分配器 (见 Allocators) 以及 epoll 专有的选项
+    public static ServerBootstrap configure(ServerBootstrap b) {
+        b.channel(serverChannelClass())
+                .option(ChannelOption.ALLOCATOR, Allocators.ALLOCATOR)
+                .childOption(ChannelOption.ALLOCATOR, Allocators.ALLOCATOR)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, Allocators.newRecvAllocator());
+        if (EPOLL) {
+            if (LISTENERS > 1)
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            b.childOption(EpollChannelOption.TCP_QUICKACK, QUICK_ACK)
+                    .childOption(EpollChannelOption.EPOLL_MODE, EDGE_TRIGGERED ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+        }
+        return b;
+    }
+
+    public static Bootstrap configure(Bootstrap b) {
+        b.channel(channelClass())
+                .option(ChannelOption.ALLOCATOR, Allocators.ALLOCATOR)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, Allocators.newRecvAllocator());
+        if (EPOLL) {
+            b.option(EpollChannelOption.TCP_QUICKACK, QUICK_ACK)
+                    .option(EpollChannelOption.EPOLL_MODE, EDGE_TRIGGERED ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+        }
+        return b;
+    }
+
+    /**
+     * 绑定监听端口. epoll 且配置了多个监听时, 每次 bind() 都会创建一个新的监听 Channel (SO_REUSEPORT),
+     * 它们注册到 boss group 中不同的 EventLoop 上, 从而可以并行 accept.
+     * @return 所有监听 Channel, 调用方通常等待它们的 closeFuture()
+     */
+    public static List<Channel> bind(ServerBootstrap b) throws InterruptedException {
+        int listeners = EPOLL ? Math.max(1, LISTENERS) : 1;
+        List<Channel> channels = new ArrayList<>(listeners);
+        for (int i = 0; i < listeners; i++)
+            channels.add(b.bind().sync().channel());
+        return channels;
+    }
+}
\ No newline at end of file
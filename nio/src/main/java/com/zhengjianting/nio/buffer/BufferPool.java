@@ -0,0 +1,224 @@
+package com.zhengjianting.nio.buffer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers in power-of-two size classes from 64 B to 64 KB.
+ * Buffers are slices carved out of large direct arenas (one arena is
+ * allocated per size class whenever that class runs dry), so the cost of
+ * allocateDirect() is paid once per arena instead of once per buffer.
+ *
+ * Released buffers go to a small per-thread cache first and overflow to a
+ * shared lock-free free list. Requests larger than 64 KB are not pooled.
+ * Buffers must be released explicitly and exactly once; with leak detection
+ * on, the allocation site of every outstanding buffer is recorded and a
+ * double or foreign release throws. Without it a foreign buffer (a slice of
+ * a mapped file, another pool's buffer, ...) is still never pooled: only
+ * buffers carved by this pool go back on its free lists.
+ */
+public final class BufferPool {
+    public static final int MIN_SIZE = 64;
+    public static final int MAX_SIZE = 64 * 1024;
+    public static final int DEFAULT_ARENA_SIZE = 1024 * 1024;
+    public static final int DEFAULT_CACHE_SIZE = 32;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_ARENA_SIZE, DEFAULT_CACHE_SIZE);
+
+    private final int arenaSize;
+    private final int cacheSize;
+    private final Queue<ByteBuffer>[] freeLists;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> caches;
+
+    private volatile boolean leakDetection;
+    private volatile boolean statsEnabled;
+    private final Map<Identity, Throwable> outstanding = new ConcurrentHashMap<>();
+    // Every buffer carved from this pool's arenas; they live as long as the pool anyway
+    private final Map<Identity, Boolean> owned = new ConcurrentHashMap<>();
+
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder freeListHits = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder arenaBytes = new LongAdder();
+
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @param arenaSize
+     *  Bytes of direct memory reserved each time a size class runs dry.
+     *  Rounded up so that an arena holds at least one MAX_SIZE buffer.
+     * @param cacheSize
+     *  Buffers of each size class kept in each thread's cache.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int arenaSize, int cacheSize) {
+        if (cacheSize < 0)
+            throw new IllegalArgumentException("cacheSize: " + cacheSize);
+        this.arenaSize = Math.max(arenaSize, MAX_SIZE);
+        this.cacheSize = cacheSize;
+        this.freeLists = new Queue[CLASSES];
+        for (int i = 0; i < CLASSES; i++)
+            freeLists[i] = new ConcurrentLinkedQueue<>();
+        this.caches = ThreadLocal.withInitial(() -> {
+            ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++)
+                cache[i] = new ArrayDeque<>(cacheSize);
+            return cache;
+        });
+    }
+
+    /**
+     * Get a cleared direct buffer with a capacity of at least size bytes.
+     * The capacity is size rounded up to its size class, so callers that
+     * need an exact length should set the limit themselves.
+     */
+    public ByteBuffer allocate(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("size: " + size);
+        boolean stats = statsEnabled;
+        if (stats)
+            allocations.increment();
+
+        ByteBuffer buffer;
+        if (size > MAX_SIZE) {
+            if (stats)
+                unpooled.increment();
+            buffer = ByteBuffer.allocateDirect(size);
+        } else {
+            int index = sizeClass(size);
+            buffer = caches.get()[index].pollLast();
+            if (buffer != null) {
+                if (stats)
+                    cacheHits.increment();
+            } else if ((buffer = freeLists[index].poll()) != null) {
+                if (stats)
+                    freeListHits.increment();
+            } else {
+                buffer = carve(index);
+            }
+            buffer.clear();
+        }
+
+        if (leakDetection)
+            outstanding.put(new Identity(buffer), new Throwable("buffer allocated here"));
+        return buffer;
+    }
+
+    /**
+     * Give a buffer obtained from allocate() back to the pool. The caller
+     * must not touch the buffer afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null)
+            return;
+        if (leakDetection && outstanding.remove(new Identity(buffer)) == null)
+            throw new IllegalStateException("buffer released twice or not from this pool: " + buffer);
+        if (statsEnabled)
+            releases.increment();
+
+        if (!buffer.isDirect() || buffer.capacity() > MAX_SIZE || !owned.containsKey(new Identity(buffer)))
+            return; // unpooled or foreign, left to the GC
+
+        int index = sizeClass(buffer.capacity());
+        ArrayDeque<ByteBuffer> cache = caches.get()[index];
+        if (cache.size() < cacheSize)
+            cache.addLast(buffer);
+        else
+            freeLists[index].offer(buffer);
+    }
+
+    // Slice a new arena into buffers of the given class, keep one for the caller
+    private ByteBuffer carve(int index) {
+        int size = MIN_SIZE << index;
+        ByteBuffer arena = ByteBuffer.allocateDirect(arenaSize - arenaSize % size);
+        if (statsEnabled)
+            arenaBytes.add(arena.capacity());
+
+        ByteBuffer first = null;
+        for (int offset = 0; offset < arena.capacity(); offset += size) {
+            arena.limit(offset + size);
+            arena.position(offset);
+            ByteBuffer slice = arena.slice();
+            arena.clear();
+            owned.put(new Identity(slice), Boolean.TRUE);
+            if (first == null)
+                first = slice;
+            else
+                freeLists[index].offer(slice);
+        }
+        return first;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+        if (!leakDetection)
+            outstanding.clear();
+    }
+
+    public void setStatsEnabled(boolean statsEnabled) {
+        this.statsEnabled = statsEnabled;
+    }
+
+    // Number of buffers allocated but not yet released; needs leak detection
+    public int getOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * Print the allocation site of every buffer which has not been released
+     * since leak detection was turned on. Leak detection should be turned
+     * on before the buffers it is meant to track are allocated, otherwise
+     * their release is reported as foreign.
+     */
+    public void reportLeaks(PrintStream out) {
+        for (Throwable site : outstanding.values())
+            site.printStackTrace(out);
+    }
+
+    public void printStats(PrintStream out) {
+        out.println("allocations = " + allocations.sum() +
+                ", cache hits = " + cacheHits.sum() +
+                ", free list hits = " + freeListHits.sum() +
+                ", unpooled = " + unpooled.sum() +
+                ", releases = " + releases.sum() +
+                ", arena bytes = " + arenaBytes.sum());
+    }
+
+    // ByteBuffer.equals() compares contents, so track buffers by identity
+    private static final class Identity {
+        private final ByteBuffer buffer;
+
+        Identity(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity && ((Identity) o).buffer == buffer;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(buffer);
+        }
+    }
+}
\ No newline at end of file
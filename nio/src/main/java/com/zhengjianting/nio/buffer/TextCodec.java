@@ -0,0 +1,242 @@
+package com.zhengjianting.nio.buffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ASCII and UTF-8 text directly in ByteBuffers: encoding a CharSequence
+ * into a buffer without an intermediate byte[], decoding with an ASCII
+ * fast path, and searching and comparing bytes where they are instead of
+ * building Strings first.
+ *
+ * The ASCII checks and single-byte searches look at 8 bytes per step with
+ * long arithmetic (SWAR), which is the vectorization available on Java 8.
+ * Methods taking an index work on absolute positions and leave the
+ * buffer's position alone; the encode methods put at the position like
+ * ByteBuffer.put() and throw BufferOverflowException when out of room.
+ */
+public final class TextCodec {
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long ONES = 0x0101010101010101L;
+    private static final int SCRATCH_SIZE = 8 * 1024;
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
+
+    private TextCodec() {
+    }
+
+    /**
+     * Put the characters as ASCII; anything outside ASCII becomes '?'.
+     * @return the number of bytes written
+     */
+    public static int encodeAscii(CharSequence s, ByteBuffer dst) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            dst.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+        return length;
+    }
+
+    /**
+     * Put the characters as UTF-8. Unpaired surrogates become '?'.
+     * @return the number of bytes written
+     */
+    public static int encodeUtf8(CharSequence s, ByteBuffer dst) {
+        int start = dst.position();
+        int length = s.length();
+        int i = 0;
+        while (i < length && s.charAt(i) < 0x80) // ASCII prefix, usually the whole string
+            dst.put((byte) s.charAt(i++));
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6));
+                dst.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                char low = i + 1 < length ? s.charAt(i + 1) : 0;
+                if (!Character.isHighSurrogate(c) || !Character.isLowSurrogate(low)) {
+                    dst.put((byte) '?');
+                    continue;
+                }
+                int cp = Character.toCodePoint(c, low);
+                i++;
+                dst.put((byte) (0xF0 | cp >> 18));
+                dst.put((byte) (0x80 | cp >> 12 & 0x3F));
+                dst.put((byte) (0x80 | cp >> 6 & 0x3F));
+                dst.put((byte) (0x80 | cp & 0x3F));
+            } else {
+                dst.put((byte) (0xE0 | c >> 12));
+                dst.put((byte) (0x80 | c >> 6 & 0x3F));
+                dst.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        return dst.position() - start;
+    }
+
+    // Number of bytes encodeUtf8() writes for s
+    public static int utf8Length(CharSequence s) {
+        int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    bytes += 2; // 4 bytes for 2 chars
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes += 1;
+            }
+        }
+        return bytes;
+    }
+
+    public static boolean isAscii(ByteBuffer buffer, int index, int length) {
+        int end = index + length;
+        int i = index;
+        for (; i + 8 <= end; i += 8) {
+            if ((buffer.getLong(i) & HIGH_BITS) != 0)
+                return false;
+        }
+        for (; i < end; i++) {
+            if (buffer.get(i) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decode length bytes of UTF-8 at index. ASCII, the common case for
+     * protocol text, is checked 8 bytes at a time and copied into the
+     * String as Latin-1, skipping the charset decoder.
+     */
+    public static String decode(ByteBuffer buffer, int index, int length) {
+        byte[] array;
+        int offset;
+        if (buffer.hasArray()) {
+            array = buffer.array();
+            offset = buffer.arrayOffset() + index;
+        } else {
+            array = length <= SCRATCH_SIZE ? SCRATCH.get() : new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.limit(index + length).position(index);
+            view.get(array, 0, length);
+            offset = 0;
+        }
+        return new String(array, offset, length,
+                isAscii(buffer, index, length) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    public static String decode(ByteBuffer buffer) {
+        return decode(buffer, buffer.position(), buffer.remaining());
+    }
+
+    // Index of the first value in [from, to), or -1
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte value) {
+        long pattern = (value & 0xFFL) * ONES;
+        boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long x = buffer.getLong(i) ^ pattern; // zero bytes where value is
+            long found = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS); // high bit set in exactly those bytes
+            if (found != 0)
+                return i + (bigEndian ? Long.numberOfLeadingZeros(found) : Long.numberOfTrailingZeros(found)) / 8;
+        }
+        for (; i < to; i++) {
+            if (buffer.get(i) == value)
+                return i;
+        }
+        return -1;
+    }
+
+    // Index of the first occurrence of needle in [from, to), or -1
+    public static int indexOf(ByteBuffer buffer, int from, int to, byte[] needle) {
+        if (needle.length == 0)
+            return from <= to ? from : -1;
+        int last = to - needle.length;
+        int i = from;
+        while (i <= last) {
+            i = indexOf(buffer, i, last + 1, needle[0]);
+            if (i < 0)
+                return -1;
+            if (matches(buffer, i, needle))
+                return i;
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int index, byte[] needle) {
+        for (int j = 1; j < needle.length; j++) {
+            if (buffer.get(index + j) != needle[j])
+                return false;
+        }
+        return true;
+    }
+
+    // Whether the length bytes at index are exactly the ASCII characters of s
+    public static boolean equalsAscii(ByteBuffer buffer, int index, int length, CharSequence s) {
+        if (length != s.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(index + i) != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean equalsIgnoreCaseAscii(ByteBuffer buffer, int index, int length, CharSequence s) {
+        if (length != s.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (toLowerAscii(buffer.get(index + i)) != toLowerAscii((byte) s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean startsWithAscii(ByteBuffer buffer, int index, int length, CharSequence prefix) {
+        return length >= prefix.length() && equalsAscii(buffer, index, prefix.length(), prefix);
+    }
+
+    private static int toLowerAscii(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * Parse a non-negative decimal number without creating a String.
+     * @throws NumberFormatException if the bytes are not 1 to 18 digits
+     */
+    public static long parseLong(ByteBuffer buffer, int index, int length) {
+        if (length == 0 || length > 18) // 18 digits can't overflow a long
+            throw new NumberFormatException("length " + length);
+        long value = 0;
+        for (int i = index; i < index + length; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("not a digit at " + i);
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    // First index in [from, to) that is not a space or tab, or to
+    public static int skipWhitespace(ByteBuffer buffer, int from, int to) {
+        while (from < to && (buffer.get(from) == ' ' || buffer.get(from) == '\t'))
+            from++;
+        return from;
+    }
+
+    // End of [from, to) without trailing spaces or tabs
+    public static int trimEnd(ByteBuffer buffer, int from, int to) {
+        while (to > from && (buffer.get(to - 1) == ' ' || buffer.get(to - 1) == '\t'))
+            to--;
+        return to;
+    }
+}
\ No newline at end of file
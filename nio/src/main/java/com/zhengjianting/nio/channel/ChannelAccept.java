@@ -2,10 +2,12 @@ package com.zhengjianting.nio.channel;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
 
-// Start this program, then "telnet localhost 1234" to connect it
+/**
+ * Start this program, then "telnet localhost 1234" to connect it
+ *
+ * Usage: ChannelAccept [port] [acceptors] [backlog]
+ */
 public class ChannelAccept {
     public static final String GREETING = "Hello I must be going.\r\n";
 
@@ -13,22 +15,26 @@ public class ChannelAccept {
         int port = 1234;
         if (args.length > 0)
             port = Integer.parseInt(args[0]);
-        ByteBuffer buffer = ByteBuffer.wrap(GREETING.getBytes());
-        ServerSocketChannel ssc = ServerSocketChannel.open();
-        ssc.bind(new InetSocketAddress(port));
-        ssc.configureBlocking(false);
+        int acceptors = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int backlog = args.length > 2 ? Integer.parseInt(args[2]) : Listener.DEFAULT_BACKLOG;
+        ByteBuffer greeting = ByteBuffer.wrap(GREETING.getBytes());
+
+        // Acceptors wait in accept() or select() instead of polling and sleeping
+        Listener listener = new Listener(new InetSocketAddress(port), acceptors, backlog, sc -> {
+            sc.write(greeting.duplicate()); // acceptor threads share the greeting, each needs its own position
+            sc.close();
+        });
+        listener.start();
+        System.out.println("Waiting for connections on port " + port + " with " + acceptors + " acceptors" +
+                (listener.isReusePort() ? " (SO_REUSEPORT)" : ""));
+
+        long last = 0;
         while (true) {
-            System.out.println("Waiting for connections");
-            SocketChannel sc = ssc.accept();
-            if (sc == null) {
-                // no connections, snooze a while
-                Thread.sleep(2000);
-            } else {
-                System.out.println("Incoming connection from: " + sc.getRemoteAddress());
-                sc.write(buffer);
-                buffer.rewind(); // position = 0
-                sc.close();
-            }
+            Thread.sleep(2000);
+            long accepted = listener.getAccepted();
+            if (accepted != last)
+                System.out.println("Accepted " + accepted + " connections, " + listener.getWakeups() + " wakeups");
+            last = accepted;
         }
     }
 }
\ No newline at end of file
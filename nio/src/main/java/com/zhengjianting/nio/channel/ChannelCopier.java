@@ -0,0 +1,182 @@
+package com.zhengjianting.nio.channel;
+
+import com.zhengjianting.nio.buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copies a channel to another using the cheapest path the two channel types
+ * allow: FileChannel.transferTo() when the source is a file (sendfile, the
+ * data stays in the kernel) and a buffered read/write loop otherwise.
+ * FileChannel.transferFrom() from a pipe or socket is not chosen on its own:
+ * the JDK implements it as a read/write loop over an 8KB temporary buffer,
+ * which loses to the buffered loop below once its buffer has grown. It can
+ * still be forced with copy(src, dest, Strategy.TRANSFER_FROM).
+ *
+ * The buffered loop starts at 16KB and sizes its pooled buffer from the
+ * reads it sees: it doubles after a few reads that fill the buffer and
+ * halves after a few that use less than a quarter of it, between 4KB and
+ * BufferPool.MAX_SIZE. Bytes copied and read/write/transfer calls are
+ * counted over the life of the copier, so one instance can be shared.
+ *
+ * Channels are expected to be in blocking mode.
+ */
+public class ChannelCopier {
+    public enum Strategy { TRANSFER_TO, TRANSFER_FROM, BUFFERED }
+
+    private static final int MIN_BUFFER = 4 * 1024;
+    private static final int INITIAL_BUFFER = 16 * 1024;
+    private static final int MAX_BUFFER = BufferPool.MAX_SIZE;
+    private static final int RESIZE_AFTER = 4; // consecutive reads before resizing
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder syscalls = new LongAdder();
+    private final LongAdder[] copies = new LongAdder[Strategy.values().length];
+
+    public ChannelCopier() {
+        for (int i = 0; i < copies.length; i++)
+            copies[i] = new LongAdder();
+    }
+
+    public static Strategy choose(ReadableByteChannel src, WritableByteChannel dest) {
+        return src instanceof FileChannel ? Strategy.TRANSFER_TO : Strategy.BUFFERED;
+    }
+
+    /**
+     * Copy everything from src's current position to its end into dest at
+     * dest's current position. Positions of file channels are advanced as if
+     * read() and write() had been used.
+     * @return the number of bytes copied
+     */
+    public long copy(ReadableByteChannel src, WritableByteChannel dest) throws IOException {
+        return copy(src, dest, choose(src, dest));
+    }
+
+    /**
+     * Copy with the given strategy; TRANSFER_TO needs a FileChannel source
+     * and TRANSFER_FROM a FileChannel destination.
+     */
+    public long copy(ReadableByteChannel src, WritableByteChannel dest, Strategy strategy) throws IOException {
+        copies[strategy.ordinal()].increment();
+        long copied;
+        switch (strategy) {
+            case TRANSFER_TO:
+                copied = transferTo((FileChannel) src, dest);
+                break;
+            case TRANSFER_FROM:
+                copied = transferFrom(src, (FileChannel) dest);
+                break;
+            default:
+                copied = buffered(src, dest);
+        }
+        bytes.add(copied);
+        return copied;
+    }
+
+    // A single transferTo() may move less than asked (Linux caps sendfile at about 2GB)
+    private long transferTo(FileChannel src, WritableByteChannel dest) throws IOException {
+        long position = src.position();
+        long end = src.size();
+        long calls = 0;
+        while (position < end) {
+            long n = src.transferTo(position, end - position, dest);
+            calls++;
+            if (n <= 0)
+                break;
+            position += n;
+        }
+        syscalls.add(calls);
+        long copied = position - src.position();
+        src.position(position);
+        return copied;
+    }
+
+    // transferFrom() returns 0 at the source's end of stream (the source is blocking)
+    private long transferFrom(ReadableByteChannel src, FileChannel dest) throws IOException {
+        long position = dest.position();
+        long start = position;
+        long calls = 0;
+        long n;
+        do {
+            n = dest.transferFrom(src, position, TRANSFER_CHUNK);
+            calls++;
+            position += n;
+        } while (n > 0);
+        syscalls.add(calls);
+        dest.position(position);
+        return position - start;
+    }
+
+    private long buffered(ReadableByteChannel src, WritableByteChannel dest) throws IOException {
+        int size = INITIAL_BUFFER;
+        ByteBuffer buffer = BufferPool.getDefault().allocate(size);
+        long copied = 0;
+        long calls = 0;
+        int full = 0;
+        int sparse = 0;
+        try {
+            while (true) {
+                int n = src.read(buffer);
+                calls++;
+                if (n == -1)
+                    break;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    dest.write(buffer);
+                    calls++;
+                }
+                copied += n;
+
+                // Resize only while the buffer is empty, nothing has to be moved
+                full = n == size ? full + 1 : 0;
+                sparse = n < size / 4 ? sparse + 1 : 0;
+                int next = size;
+                if (full >= RESIZE_AFTER && size < MAX_BUFFER)
+                    next = size * 2;
+                else if (sparse >= RESIZE_AFTER && size > MIN_BUFFER)
+                    next = size / 2;
+                if (next != size) {
+                    BufferPool.getDefault().release(buffer);
+                    buffer = BufferPool.getDefault().allocate(next);
+                    size = next;
+                    full = 0;
+                    sparse = 0;
+                } else {
+                    buffer.clear();
+                }
+            }
+        } finally {
+            BufferPool.getDefault().release(buffer);
+            syscalls.add(calls);
+        }
+        return copied;
+    }
+
+    public long getBytesCopied() {
+        return bytes.sum();
+    }
+
+    // read(), write(), transferTo() and transferFrom() calls made
+    public long getSyscalls() {
+        return syscalls.sum();
+    }
+
+    public long getCopies(Strategy strategy) {
+        return copies[strategy.ordinal()].sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("bytes = ").append(bytes.sum()).append(", syscalls = ").append(syscalls.sum());
+        for (Strategy strategy : Strategy.values())
+            sb.append(", ").append(strategy).append(" = ").append(getCopies(strategy));
+        return sb.toString();
+    }
+}
\ No newline at end of file
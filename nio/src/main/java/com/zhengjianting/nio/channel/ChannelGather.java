@@ -1,11 +1,8 @@
 package com.zhengjianting.nio.channel;
 
 import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Random;
 
 public class ChannelGather {
@@ -17,11 +14,12 @@ public class ChannelGather {
             reps = Integer.parseInt(args[0]);
         FileOutputStream fos = new FileOutputStream(DEMOGRAPHIC);
         GatheringByteChannel gatherChannel = fos.getChannel();
-        ByteBuffer[] bs = utterBS(reps);
-        while (gatherChannel.write(bs) > 0) {
-            // Empty body
-            // Loop util write() returns zero
-        }
+        // 小片段合并到池化的直接缓冲区中, 每次 writev 最多 IOV_MAX 个缓冲区
+        GatheringWriter writer = new GatheringWriter(gatherChannel);
+        utterBS(writer, reps);
+        writer.flush();
+        System.out.println("Wrote " + writer.getBytesWritten() + " bytes with " + writer.getWrites() + " write() calls");
+        writer.close();
         fos.close();
     }
 
@@ -45,27 +43,29 @@ public class ChannelGather {
 
     private static final String newLine = System.getProperty("line.separator");
 
-    private static ByteBuffer[] utterBS(int howMany) {
-        List<ByteBuffer> list = new LinkedList<>();
+    private static final byte[][] words1 = encode(col1, " ");
+    private static final byte[][] words2 = encode(col2, " ");
+    private static final byte[][] words3 = encode(col3, newLine);
+
+    private static void utterBS(GatheringWriter writer, int howMany) {
         for (int i = 0; i < howMany; i++) {
-            list.add(pickRandom(col1, " "));
-            list.add(pickRandom(col2, " "));
-            list.add(pickRandom(col3, newLine));
+            writer.write(pickRandom(words1));
+            writer.write(pickRandom(words2));
+            writer.write(pickRandom(words3));
         }
-        ByteBuffer[] bufs = new ByteBuffer[list.size()];
-        list.toArray(bufs);
-        return bufs;
     }
 
     private static final Random rand = new Random();
 
-    private static ByteBuffer pickRandom(String[] strings, String suffix) {
-        String string = strings[rand.nextInt(strings.length)];
-        int total = string.length() + suffix.length();
-        ByteBuffer buf = ByteBuffer.allocate(total);
-        buf.put(string.getBytes(StandardCharsets.US_ASCII));
-        buf.put(suffix.getBytes(StandardCharsets.US_ASCII));
-        buf.flip();
-        return buf;
+    private static byte[] pickRandom(byte[][] words) {
+        return words[rand.nextInt(words.length)];
+    }
+
+    // 每个单词连同后缀只编码一次
+    private static byte[][] encode(String[] strings, String suffix) {
+        byte[][] words = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++)
+            words[i] = (strings[i] + suffix).getBytes(StandardCharsets.US_ASCII);
+        return words;
     }
 }
\ No newline at end of file
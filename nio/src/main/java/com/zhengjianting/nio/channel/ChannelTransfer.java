@@ -1,26 +1,192 @@
 package com.zhengjianting.nio.channel;
 
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Usage: ChannelTransfer filename ...
+ *   concatenates the files to standard output
+ * Usage: ChannelTransfer -parallel target [threads] filename ...
+ *   concatenates the files into target, copying ranges of each file in
+ *   parallel and printing progress every second
+ */
 public class ChannelTransfer {
+    private static final int DEFAULT_THREADS = 4;
+    private static final long RANGE_SIZE = 64 * 1024 * 1024;
+
     public static void main(String[] args) throws Exception {
         if (args.length == 0) {
             System.err.println("Usage: filename ...");
+            System.err.println("       -parallel target [threads] filename ...");
+            return;
+        }
+        if (!"-parallel".equals(args[0])) {
+            catFiles(Channels.newChannel(System.out), args);
             return;
         }
-        catFiles(Channels.newChannel(System.out), args);
+
+        int first = 2;
+        int threads = DEFAULT_THREADS;
+        if (args.length > 3 && args[2].matches("\\d+")) {
+            threads = Integer.parseInt(args[2]);
+            first = 3;
+        }
+        List<Path> files = new ArrayList<>();
+        for (int i = first; i < args.length; i++)
+            files.add(Paths.get(args[i]));
+        long start = System.nanoTime();
+        long bytes = catFiles(Paths.get(args[1]), files, threads, System.out);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Copied %d bytes in %.1f s (%.1f MB/s)%n", bytes, seconds, bytes / seconds / (1024 * 1024));
     }
 
     public static void catFiles(WritableByteChannel target, String[] files) throws Exception {
         for (String file : files) {
             FileInputStream fis = new FileInputStream(file);
             FileChannel channel = fis.getChannel();
-            channel.transferTo(0, channel.size(), target);
+            transferFully(channel, 0, channel.size(), target);
             channel.close();
             fis.close();
         }
     }
+
+    /**
+     * transferTo() may move less than asked: Linux caps one sendfile at
+     * about 2GB, and a socket target may accept only part of it.
+     *
+     * The target must be in blocking mode. A non-blocking target returns 0
+     * whenever it is full, and this loop has no selector to wait on; such a
+     * caller should call transferTo() itself and wait for OP_WRITE.
+     */
+    public static void transferFully(FileChannel channel, long position, long count, WritableByteChannel target) throws IOException {
+        if (target instanceof SelectableChannel && !((SelectableChannel) target).isBlocking())
+            throw new IllegalBlockingModeException();
+        long end = position + count;
+        while (position < end) {
+            long n = channel.transferTo(position, end - position, target);
+            if (n <= 0) {
+                if (position >= channel.size())
+                    throw new IOException("File shrank during transfer: " + channel.size() + " < " + end);
+                throw new IOException("transferTo made no progress at " + position + " of " + end);
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Concatenate files into target. The target is extended to the total size
+     * first, every file is split into ranges of RANGE_SIZE, and the ranges are
+     * copied by the given number of threads. Each range is a positional
+     * transferTo() into a channel of its own on the target, so the copies
+     * never share a file position.
+     * @param progress
+     *  Receives a line per second with the bytes done and the throughput, or null.
+     * @return the number of bytes copied
+     */
+    public static long catFiles(Path target, List<Path> files, int threads, PrintStream progress) throws IOException, InterruptedException {
+        List<FileChannel> sources = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicLong done = new AtomicLong();
+        Thread reporter = null;
+        try {
+            long total = 0;
+            for (Path file : files) {
+                FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                sources.add(source);
+                total += source.size();
+            }
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (total > 0)
+                    out.write(ByteBuffer.allocate(1), total - 1); // set the final length up front
+            }
+            if (progress != null)
+                reporter = startProgress(progress, done, total);
+
+            List<Future<?>> ranges = new ArrayList<>();
+            long offset = 0;
+            for (FileChannel source : sources) {
+                long size = source.size();
+                for (long position = 0; position < size; position += RANGE_SIZE) {
+                    long count = Math.min(RANGE_SIZE, size - position);
+                    ranges.add(executor.submit(rangeCopy(source, position, count, target, offset + position, done)));
+                }
+                offset += size;
+            }
+            for (Future<?> range : ranges) {
+                try {
+                    range.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                }
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            if (reporter != null)
+                reporter.interrupt();
+            for (FileChannel source : sources)
+                source.close();
+        }
+    }
+
+    private static Callable<Void> rangeCopy(final FileChannel source, final long position, final long count,
+                                            final Path target, final long targetPosition, final AtomicLong done) {
+        return () -> {
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                out.position(targetPosition);
+                long end = position + count;
+                for (long p = position; p < end; ) {
+                    // Chunks keep the progress counter moving on large ranges
+                    long n = source.transferTo(p, Math.min(end - p, 8 * 1024 * 1024), out);
+                    if (n <= 0)
+                        throw new IOException("File shrank during transfer: " + source.size() + " < " + end);
+                    p += n;
+                    done.addAndGet(n);
+                }
+            }
+            return null;
+        };
+    }
+
+    private static Thread startProgress(final PrintStream out, final AtomicLong done, final long total) {
+        Thread thread = new Thread(() -> {
+            long last = 0;
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    long now = done.get();
+                    out.printf("%d / %d bytes (%.1f%%), %.1f MB/s%n", now, total,
+                            total == 0 ? 100.0 : now * 100.0 / total, (now - last) / (1024.0 * 1024.0));
+                    last = now;
+                }
+            } catch (InterruptedException e) {
+                // copy finished
+            }
+        }, "transfer-progress");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
 }
\ No newline at end of file
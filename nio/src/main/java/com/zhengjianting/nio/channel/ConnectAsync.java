@@ -2,16 +2,30 @@ package com.zhengjianting.nio.channel;
 
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Usage: ConnectAsync [host port] [connections]
+ * With more than one connection, the connects are started together through
+ * a Connector instead of polling finishConnect() one at a time.
+ */
 public class ConnectAsync {
     public static void main(String[] args) throws Exception {
         String host = "localhost";
         int port = 1234;
-        if (args.length == 2) {
+        if (args.length >= 2) {
             host = args[0];
             port = Integer.parseInt(args[1]);
         }
         InetSocketAddress addr = new InetSocketAddress(host, port);
+        if (args.length == 3) {
+            connectMany(addr, Integer.parseInt(args[2]));
+            return;
+        }
         SocketChannel sc = SocketChannel.open();
         sc.configureBlocking(false);
         System.out.println("initiating connection");
@@ -23,6 +37,25 @@ public class ConnectAsync {
         sc.close();
     }
 
+    private static void connectMany(InetSocketAddress addr, int connections) throws Exception {
+        System.out.println("initiating " + connections + " connections");
+        long start = System.nanoTime();
+        int established = 0;
+        try (Connector connector = new Connector()) {
+            List<CompletableFuture<SocketChannel>> futures =
+                    connector.connectAll(Collections.nCopies(connections, addr), 5, TimeUnit.SECONDS);
+            for (CompletableFuture<SocketChannel> future : futures) {
+                try {
+                    future.get().close();
+                    established++;
+                } catch (ExecutionException e) {
+                    System.out.println("connect failed: " + e.getCause());
+                }
+            }
+        }
+        System.out.printf("%d connections established in %.1f ms%n", established, (System.nanoTime() - start) / 1e6);
+    }
+
     private static void doSomethingUseful() {
         System.out.println("doing something useless");
     }
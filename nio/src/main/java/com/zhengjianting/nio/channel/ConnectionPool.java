@@ -0,0 +1,256 @@
+package com.zhengjianting.nio.channel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of connections to one address, opened through a Connector.
+ * acquire() prefers the most recently released idle connection, opens a new
+ * one while fewer than maxSize exist, and otherwise waits for a release.
+ * prefill() opens many connections at once for warm-up.
+ *
+ * An idle connection is checked before it is handed out again if it has
+ * been idle for longer than the check interval: a non-blocking read must
+ * find nothing to read, since end of stream, an error or unexpected bytes
+ * all mean the connection can no longer be used. A background thread
+ * closes connections idle for longer than the idle timeout.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final long CHECK_AFTER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Connector connector;
+    private final InetSocketAddress address;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long connectTimeoutMillis;
+    private final Deque<Idle> idle = new ArrayDeque<>(); // most recently released last
+    private final ScheduledExecutorService evictor;
+    private final ByteBuffer probe = ByteBuffer.allocate(1); // guarded by this
+    private int size; // open connections, idle or in use, plus connects in progress
+    private boolean closed;
+
+    private long created;
+    private long reused;
+    private long evicted;
+    private long failedChecks;
+
+    public ConnectionPool(Connector connector, InetSocketAddress address, int maxSize,
+                          long idleTimeoutMillis, long connectTimeoutMillis) {
+        this.connector = connector;
+        this.address = address;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open up to count new connections in parallel, within maxSize, and add
+     * them to the idle set. If interrupted, the connects still in progress
+     * give up their slots and their channels are closed once connected.
+     * @return the number of connections opened
+     */
+    public int prefill(int count) throws InterruptedException {
+        List<CompletableFuture<SocketChannel>> futures = new ArrayList<>();
+        synchronized (this) {
+            int n = Math.min(count, maxSize - size);
+            size += n;
+            futures.addAll(connector.connectAll(Collections.nCopies(n, address), connectTimeoutMillis, TimeUnit.MILLISECONDS));
+        }
+        int opened = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                release(futures.get(i).get());
+                synchronized (this) {
+                    created++;
+                }
+                opened++;
+            } catch (ExecutionException e) {
+                freeSlot();
+            } catch (InterruptedException e) {
+                for (CompletableFuture<SocketChannel> abandoned : futures.subList(i, futures.size())) {
+                    freeSlot();
+                    closeWhenConnected(abandoned);
+                }
+                throw e;
+            }
+        }
+        return opened;
+    }
+
+    public SocketChannel acquire(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (true) {
+                if (closed)
+                    throw new IOException("Pool closed");
+                Idle entry;
+                while ((entry = idle.pollLast()) != null) {
+                    if (System.nanoTime() - entry.since < CHECK_AFTER_NANOS || isHealthy(entry.channel)) {
+                        reused++;
+                        return entry.channel;
+                    }
+                    failedChecks++;
+                    discard(entry.channel);
+                }
+                if (size < maxSize) {
+                    size++;
+                    break;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    throw new SocketTimeoutException("No connection available within " + unit.toMillis(timeout) + " ms");
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+
+        // Connect outside the lock; the slot is already counted
+        long remaining = Math.max(1, deadline - System.nanoTime());
+        CompletableFuture<SocketChannel> future = connector.connect(address,
+                Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis)), TimeUnit.NANOSECONDS);
+        try {
+            SocketChannel channel = future.get();
+            synchronized (this) {
+                created++;
+            }
+            return channel;
+        } catch (ExecutionException e) {
+            freeSlot();
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            freeSlot();
+            closeWhenConnected(future);
+            throw e;
+        }
+    }
+
+    // Give a healthy connection back for reuse
+    public synchronized void release(SocketChannel channel) {
+        if (closed || !channel.isOpen()) {
+            discard(channel);
+            return;
+        }
+        idle.addLast(new Idle(channel, System.nanoTime()));
+        notifyAll();
+    }
+
+    // Close a connection the caller found broken or left in an unknown state
+    public synchronized void invalidate(SocketChannel channel) {
+        discard(channel);
+    }
+
+    private synchronized void freeSlot() {
+        size--;
+        notifyAll();
+    }
+
+    // For a connect nobody waits for any more; its slot has been freed
+    private static void closeWhenConnected(CompletableFuture<SocketChannel> future) {
+        future.whenComplete((channel, e) -> {
+            if (channel == null)
+                return;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // nothing more to do with it
+            }
+        });
+    }
+
+    // Called with the lock held
+    private void discard(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+        size--;
+        notifyAll();
+    }
+
+    // Called with the lock held
+    private boolean isHealthy(SocketChannel channel) {
+        if (!channel.isOpen() || !channel.isConnected())
+            return false;
+        try {
+            boolean blocking = channel.isBlocking();
+            if (blocking)
+                channel.configureBlocking(false);
+            probe.clear();
+            int n = channel.read(probe);
+            if (blocking)
+                channel.configureBlocking(true);
+            return n == 0;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private synchronized void evictIdle() {
+        long now = System.nanoTime();
+        Iterator<Idle> it = idle.iterator(); // oldest first
+        while (it.hasNext()) {
+            Idle entry = it.next();
+            if (now - entry.since < idleTimeoutNanos)
+                break;
+            it.remove();
+            evicted++;
+            discard(entry.channel);
+        }
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "size = " + size + ", idle = " + idle.size() + ", created = " + created + ", reused = " + reused +
+                ", evicted = " + evicted + ", failed checks = " + failedChecks;
+    }
+
+    // Close the idle connections; connections in use are closed when released
+    @Override
+    public synchronized void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (Idle entry; (entry = idle.poll()) != null; )
+            discard(entry.channel);
+        notifyAll();
+    }
+
+    private static final class Idle {
+        final SocketChannel channel;
+        final long since;
+
+        Idle(SocketChannel channel, long since) {
+            this.channel = channel;
+            this.since = since;
+        }
+    }
+}
\ No newline at end of file
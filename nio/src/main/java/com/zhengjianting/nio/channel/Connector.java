@@ -0,0 +1,206 @@
+package com.zhengjianting.nio.channel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens client connections without a thread per connect: one thread owns
+ * a Selector, starts every requested connect in non-blocking mode, and
+ * finishes it when the channel becomes connectable, instead of polling
+ * finishConnect() like ConnectAsync does. Each connect has its own timeout,
+ * after which its future fails with a SocketTimeoutException.
+ *
+ * Established channels are handed over in non-blocking mode and no longer
+ * registered with the connector's selector, so the caller may switch them
+ * to blocking mode.
+ */
+public class Connector implements AutoCloseable {
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Pending> requests = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Pending> deadlines = new PriorityQueue<>(); // only touched by the connector thread
+    private volatile boolean closed;
+
+    public Connector() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this::run, "connector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public CompletableFuture<SocketChannel> connect(InetSocketAddress address, long timeout, TimeUnit unit) {
+        Pending pending = new Pending(address, System.nanoTime() + unit.toNanos(timeout));
+        if (closed) {
+            pending.future.completeExceptionally(new IOException("Connector closed"));
+            return pending.future;
+        }
+        requests.add(pending);
+        // close() may have run, and the connector thread drained the queue, since the check above
+        if (closed && requests.remove(pending)) {
+            pending.fail(new IOException("Connector closed"));
+            return pending.future;
+        }
+        selector.wakeup();
+        return pending.future;
+    }
+
+    // Start all connects at once; they complete independently
+    public List<CompletableFuture<SocketChannel>> connectAll(List<InetSocketAddress> addresses, long timeout, TimeUnit unit) {
+        List<CompletableFuture<SocketChannel>> futures = new ArrayList<>(addresses.size());
+        for (InetSocketAddress address : addresses)
+            futures.add(connect(address, timeout, unit));
+        return futures;
+    }
+
+    private void run() {
+        List<Pending> established = new ArrayList<>();
+        try {
+            while (!closed) {
+                startRequested();
+                expire();
+                long timeout = 0;
+                Pending next = deadlines.peek();
+                if (next != null)
+                    timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()) + 1);
+                selector.select(timeout);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Pending pending = (Pending) key.attachment();
+                    try {
+                        if (pending.channel.finishConnect()) {
+                            key.cancel();
+                            pending.done = true;
+                            established.add(pending);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        pending.fail(e);
+                    }
+                }
+                complete(established);
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed)
+                e.printStackTrace();
+        } finally {
+            // Also on an unexpected error: connect() fails new requests once closed is set
+            closed = true;
+            for (Pending pending : established)
+                pending.fail(new IOException("Connector closed"));
+            for (Pending pending : deadlines) {
+                if (!pending.done)
+                    pending.fail(new IOException("Connector closed"));
+            }
+            for (Pending pending; (pending = requests.poll()) != null; )
+                pending.fail(new IOException("Connector closed"));
+        }
+    }
+
+    private void startRequested() {
+        for (Pending pending; (pending = requests.poll()) != null; ) {
+            try {
+                pending.channel = SocketChannel.open();
+                pending.channel.configureBlocking(false);
+                if (pending.channel.connect(pending.address)) {
+                    handOver(pending); // loopback connects may finish at once
+                    continue;
+                }
+                pending.channel.register(selector, SelectionKey.OP_CONNECT, pending);
+                deadlines.add(pending);
+            } catch (IOException | RuntimeException e) {
+                // RuntimeException: UnresolvedAddressException, UnsupportedAddressTypeException, ...
+                pending.fail(e);
+            }
+        }
+    }
+
+    // Finished connects stay in the queue until they reach its head, which saves a linear remove()
+    private void expire() {
+        long now = System.nanoTime();
+        for (Pending pending; (pending = deadlines.peek()) != null; ) {
+            if (!pending.done && pending.deadline - now > 0)
+                break;
+            deadlines.poll();
+            if (!pending.done)
+                pending.fail(new SocketTimeoutException("connect timed out: " + pending.address));
+        }
+    }
+
+    // Hand over only after a selectNow() has deregistered the cancelled keys
+    private void complete(List<Pending> established) throws IOException {
+        if (established.isEmpty())
+            return;
+        selector.selectNow();
+        for (Pending pending : established)
+            handOver(pending);
+        established.clear();
+    }
+
+    // A future the caller has already cancelled or completed does not take the channel
+    private static void handOver(Pending pending) {
+        if (pending.future.complete(pending.channel))
+            return;
+        try {
+            pending.channel.close();
+        } catch (IOException e) {
+            // nobody wants it
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+    }
+
+    private static final class Pending implements Comparable<Pending> {
+        final InetSocketAddress address;
+        final long deadline;
+        final CompletableFuture<SocketChannel> future = new CompletableFuture<>();
+        SocketChannel channel;
+        boolean done;
+
+        Pending(InetSocketAddress address, long deadline) {
+            this.address = address;
+            this.deadline = deadline;
+        }
+
+        void fail(Exception e) {
+            done = true;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // already failing
+                }
+            }
+            future.completeExceptionally(e);
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
\ No newline at end of file
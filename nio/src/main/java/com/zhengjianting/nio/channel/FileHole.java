@@ -1,5 +1,7 @@
 package com.zhengjianting.nio.channel;
 
+import com.zhengjianting.nio.buffer.BufferPool;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -13,10 +15,11 @@ public class FileHole {
         RandomAccessFile file = new RandomAccessFile(temp, "rw");
         FileChannel channel = file.getChannel();
 
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(100);
+        ByteBuffer byteBuffer = BufferPool.getDefault().allocate(100);
         putData(0, byteBuffer, channel);
         putData(50000, byteBuffer, channel);
         putData(5000000, byteBuffer, channel);
+        BufferPool.getDefault().release(byteBuffer);
 
         System.out.println("Wrote temp file '" + temp.getPath() + "', size = " + channel.size());
         channel.close();
@@ -0,0 +1,192 @@
+package com.zhengjianting.nio.channel;
+
+import com.zhengjianting.nio.buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Collects many small fragments and writes them with as few gathering
+ * writes as possible. Fragments below the coalesce threshold are copied
+ * into a pooled direct buffer shared with their neighbours, since copying a
+ * few bytes is cheaper than an iovec entry. Larger direct buffers are
+ * queued as they are (the caller must leave them alone until flushed), and
+ * larger heap buffers are copied into pooled direct buffers so the JDK does
+ * not have to copy them into temporary ones on every write.
+ *
+ * flush() passes at most maxSegments buffers to each write(), matching the
+ * kernel's IOV_MAX limit for writev (1024 on Linux), and copes with partial
+ * writes: on a non-blocking channel it returns false with the unwritten
+ * part still queued, to be retried when the channel is writable.
+ *
+ * Not thread safe.
+ */
+public class GatheringWriter implements AutoCloseable {
+    public static final int IOV_MAX = 1024;
+    public static final int DEFAULT_COALESCE_THRESHOLD = 512;
+    private static final int COALESCE_BUFFER = 16 * 1024;
+
+    private final GatheringByteChannel channel;
+    private final int maxSegments;
+    private final int coalesceThreshold;
+
+    // Queued segments, in read mode, from head to tail; owned ones go back to the pool
+    private ByteBuffer[] segments = new ByteBuffer[64];
+    private boolean[] owned = new boolean[64];
+    private int head;
+    private int tail;
+    private ByteBuffer current; // pooled buffer being filled with small fragments, in write mode
+
+    private long writes;
+    private long segmentsWritten;
+    private long bytesWritten;
+
+    public GatheringWriter(GatheringByteChannel channel) {
+        this(channel, IOV_MAX, DEFAULT_COALESCE_THRESHOLD);
+    }
+
+    public GatheringWriter(GatheringByteChannel channel, int maxSegments, int coalesceThreshold) {
+        if (maxSegments < 1)
+            throw new IllegalArgumentException("maxSegments: " + maxSegments);
+        this.channel = channel;
+        this.maxSegments = maxSegments;
+        this.coalesceThreshold = Math.min(coalesceThreshold, COALESCE_BUFFER);
+    }
+
+    /**
+     * Queue the remaining bytes of src. The buffer's position is advanced
+     * if its bytes are copied; a large direct buffer is queued as it is.
+     */
+    public GatheringWriter write(ByteBuffer src) {
+        int length = src.remaining();
+        if (length == 0)
+            return this;
+        if (length < coalesceThreshold) {
+            if (current == null || current.remaining() < length)
+                newCurrent();
+            current.put(src);
+        } else if (src.isDirect()) {
+            seal();
+            add(src, false);
+        } else {
+            seal();
+            while (src.hasRemaining()) {
+                int chunk = Math.min(src.remaining(), BufferPool.MAX_SIZE);
+                ByteBuffer copy = BufferPool.getDefault().allocate(chunk);
+                int limit = src.limit();
+                src.limit(src.position() + chunk);
+                copy.put(src);
+                src.limit(limit);
+                copy.flip();
+                add(copy, true);
+            }
+        }
+        return this;
+    }
+
+    public GatheringWriter write(byte[] bytes) {
+        return write(ByteBuffer.wrap(bytes));
+    }
+
+    public GatheringWriter write(byte[] bytes, int offset, int length) {
+        return write(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Write out everything queued, at most maxSegments buffers per write().
+     * @return true if nothing is left, false if the channel accepted no more
+     *  (non-blocking channels only)
+     */
+    public boolean flush() throws IOException {
+        seal();
+        while (head < tail) {
+            int count = Math.min(tail - head, maxSegments);
+            long n = channel.write(segments, head, count);
+            writes++;
+            bytesWritten += n;
+            int end = head + count;
+            while (head < end && !segments[head].hasRemaining()) {
+                if (owned[head])
+                    BufferPool.getDefault().release(segments[head]);
+                segments[head] = null;
+                head++;
+                segmentsWritten++;
+            }
+            if (n == 0) // the channel is full; everything from head on is still queued
+                return false;
+        }
+        head = 0;
+        tail = 0;
+        return true;
+    }
+
+    public int getQueuedSegments() {
+        return tail - head + (current != null && current.position() > 0 ? 1 : 0);
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getSegmentsWritten() {
+        return segmentsWritten;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Return the pooled buffers; anything not flushed is dropped. The
+     * channel is not closed.
+     */
+    @Override
+    public void close() {
+        if (current != null) {
+            BufferPool.getDefault().release(current);
+            current = null;
+        }
+        for (int i = head; i < tail; i++) {
+            if (owned[i])
+                BufferPool.getDefault().release(segments[i]);
+            segments[i] = null;
+        }
+        head = 0;
+        tail = 0;
+    }
+
+    private void newCurrent() {
+        seal();
+        current = BufferPool.getDefault().allocate(COALESCE_BUFFER);
+    }
+
+    // Queue the buffer being filled, so later fragments keep their order
+    private void seal() {
+        if (current == null || current.position() == 0)
+            return;
+        current.flip();
+        add(current, true);
+        current = null;
+    }
+
+    private void add(ByteBuffer buffer, boolean pooled) {
+        if (tail == segments.length) {
+            if (head > 0) { // reuse the space of segments already written
+                System.arraycopy(segments, head, segments, 0, tail - head);
+                System.arraycopy(owned, head, owned, 0, tail - head);
+                Arrays.fill(segments, tail - head, tail, null);
+                tail -= head;
+                head = 0;
+            }
+            if (tail == segments.length) {
+                segments = Arrays.copyOf(segments, segments.length * 2);
+                owned = Arrays.copyOf(owned, owned.length * 2);
+            }
+        }
+        segments[tail] = buffer;
+        owned[tail] = pooled;
+        tail++;
+    }
+}
\ No newline at end of file
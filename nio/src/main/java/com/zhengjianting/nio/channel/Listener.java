@@ -0,0 +1,257 @@
+package com.zhengjianting.nio.channel;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accepts connections on several threads and passes them to a Handler.
+ *
+ * Where the JDK and OS support SO_REUSEPORT (Java 9+ on Linux), every
+ * acceptor binds a ServerSocketChannel of its own to the same address and
+ * the kernel spreads incoming connections across them. Each acceptor waits
+ * in its own Selector and, once woken, accepts up to BATCH connections
+ * before selecting again. Otherwise the acceptors share one listening
+ * channel in blocking mode. The JDK serializes accept() on a channel with a
+ * lock, so there they take turns accepting and only run the handler in
+ * parallel.
+ *
+ * A failed accept (EMFILE when out of file descriptors, ...) is logged and
+ * the acceptor backs off for a moment before trying again, since the
+ * pending connections stay queued in the kernel. If an acceptor stops for
+ * any other reason its listening channel is closed.
+ *
+ * The handler runs on the acceptor thread, so it should only hand the
+ * channel off (to a reactor, a pool, ...) rather than serve it.
+ */
+public class Listener implements AutoCloseable {
+    public interface Handler {
+        void handle(SocketChannel channel) throws IOException;
+    }
+
+    public static final int DEFAULT_BACKLOG = 1024;
+    private static final int BATCH = 64;
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+    private static final SocketOption<Boolean> SO_REUSEPORT = reusePortOption();
+
+    private final InetSocketAddress address;
+    private final int acceptors;
+    private final int backlog;
+    private final Handler handler;
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+    private final List<Selector> selectors = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder acceptErrors = new LongAdder();
+    private volatile boolean closed;
+    private boolean reusePort;
+
+    /**
+     * @param backlog
+     *  Length of the kernel's accept queue for each listening channel; the
+     *  OS caps it (net.core.somaxconn on Linux).
+     */
+    public Listener(InetSocketAddress address, int acceptors, int backlog, Handler handler) {
+        this.address = address;
+        this.acceptors = acceptors;
+        this.backlog = backlog;
+        this.handler = handler;
+    }
+
+    public synchronized void start() throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        channels.add(first);
+        reusePort = acceptors > 1 && SO_REUSEPORT != null && first.supportedOptions().contains(SO_REUSEPORT);
+        if (reusePort)
+            first.setOption(SO_REUSEPORT, true);
+        first.bind(address, backlog);
+        InetSocketAddress bound = (InetSocketAddress) first.getLocalAddress(); // the real port if 0 was asked
+
+        for (int i = 0; i < acceptors; i++) {
+            final ServerSocketChannel channel;
+            final Selector selector;
+            if (reusePort) {
+                if (i == 0) {
+                    channel = first;
+                } else {
+                    channel = ServerSocketChannel.open();
+                    channels.add(channel);
+                    channel.setOption(SO_REUSEPORT, true);
+                    channel.bind(bound, backlog);
+                }
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                selectors.add(selector);
+                channel.register(selector, SelectionKey.OP_ACCEPT);
+            } else {
+                channel = first;
+                selector = null;
+            }
+            Thread thread = new Thread(() -> {
+                if (selector != null)
+                    selectLoop(channel, selector);
+                else
+                    blockingLoop(channel);
+            }, "acceptor-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    private void selectLoop(ServerSocketChannel channel, Selector selector) {
+        try {
+            while (!closed) {
+                selector.select();
+                selector.selectedKeys().clear();
+                wakeups.increment();
+                // Drain the accept queue in batches; the key stays ready if more are waiting
+                for (int i = 0; i < BATCH; i++) {
+                    SocketChannel sc;
+                    try {
+                        sc = channel.accept();
+                    } catch (ClosedChannelException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        acceptFailed(e);
+                        break;
+                    }
+                    if (sc == null)
+                        break;
+                    dispatch(sc);
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // closed
+        } catch (IOException e) {
+            if (!closed)
+                e.printStackTrace();
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    private void blockingLoop(ServerSocketChannel channel) {
+        try {
+            while (!closed) {
+                SocketChannel sc;
+                try {
+                    sc = channel.accept();
+                } catch (ClosedChannelException e) {
+                    throw e;
+                } catch (IOException e) {
+                    acceptFailed(e);
+                    continue;
+                }
+                wakeups.increment();
+                dispatch(sc);
+            }
+        } catch (ClosedChannelException e) {
+            // closed
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    // The connection stays in the kernel's accept queue; wait a little
+    // (for file descriptors to be freed, ...) rather than spin on the error
+    private void acceptFailed(IOException e) {
+        if (closed)
+            return;
+        acceptErrors.increment();
+        System.out.println("Caught '" + e + "' accepting, retrying in " + ACCEPT_BACKOFF_MILLIS + "ms");
+        try {
+            Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // the next accept() closes the channel
+        }
+    }
+
+    private static void closeQuietly(ServerSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void dispatch(SocketChannel sc) {
+        accepted.increment();
+        try {
+            handler.handle(sc);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Caught '" + e + "' closing channel");
+            try {
+                sc.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channels.get(0).getLocalAddress();
+    }
+
+    // Whether each acceptor has its own SO_REUSEPORT channel
+    public synchronized boolean isReusePort() {
+        return reusePort;
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    // Accepts which failed and were retried after a back-off
+    public long getAcceptErrors() {
+        return acceptErrors.sum();
+    }
+
+    // Selector wakeups (or blocking accepts); accepted / wakeups is the batch size
+    public long getWakeups() {
+        return wakeups.sum();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        for (ServerSocketChannel channel : channels)
+            channel.close(); // wakes acceptors blocked in accept()
+        for (Selector selector : selectors)
+            selector.wakeup();
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // StandardSocketOptions.SO_REUSEPORT only exists from Java 9
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePortOption() {
+        try {
+            Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+            return (SocketOption<Boolean>) field.get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
\ No newline at end of file
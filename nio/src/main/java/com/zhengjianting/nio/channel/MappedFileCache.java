@@ -0,0 +1,290 @@
+package com.zhengjianting.nio.channel;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of read-only file mappings keyed by canonical path, bounded by the
+ * total number of mapped bytes. Hits are a ConcurrentHashMap lookup and a CAS
+ * on the entry's reference count, with no lock. Misses map the file under a
+ * lock and evict the least recently used entries until the new mapping fits.
+ *
+ * An entry is checked against the file's mtime and size at most once per
+ * check interval and replaced if either changed. Evicted or stale mappings
+ * are unmapped eagerly, as soon as the last caller still using them releases
+ * its Mapping, instead of holding address space until a GC.
+ */
+public final class MappedFileCache {
+    public static final long DEFAULT_CHECK_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long checkIntervalNanos;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(); // access order for LRU
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public MappedFileCache(long maxBytes) {
+        this(maxBytes, maxBytes, DEFAULT_CHECK_INTERVAL_NANOS);
+    }
+
+    /**
+     * @param maxBytes
+     *  Total size of all mappings held by the cache.
+     * @param maxEntryBytes
+     *  Larger files are not cached; acquire() returns null for them.
+     * @param checkIntervalNanos
+     *  How long a hit may go without comparing mtime and size with the file.
+     */
+    public MappedFileCache(long maxBytes, long maxEntryBytes, long checkIntervalNanos) {
+        if (maxBytes < 1)
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxBytes, maxEntryBytes);
+        this.checkIntervalNanos = checkIntervalNanos;
+    }
+
+    /**
+     * Get a mapping of the whole file. The caller must release() it once it
+     * no longer reads the buffer.
+     * @return the mapping, or null if the file is too large to be cached
+     */
+    public Mapping acquire(Path file) throws IOException {
+        Path key = file.toRealPath();
+        Entry entry = entries.get(key);
+        if (entry != null && isFresh(key, entry) && entry.retain()) {
+            entry.lastAccess = clock.incrementAndGet();
+            hits.increment();
+            return new Mapping(entry);
+        }
+        return load(key);
+    }
+
+    private boolean isFresh(Path key, Entry entry) throws IOException {
+        long now = System.nanoTime();
+        if (now - entry.checkedAt < checkIntervalNanos)
+            return true;
+        BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        if (attrs.lastModifiedTime().toMillis() == entry.mtime && attrs.size() == entry.size) {
+            entry.checkedAt = now;
+            return true;
+        }
+        if (entries.remove(key, entry)) {
+            invalidations.increment();
+            drop(entry);
+        }
+        return false;
+    }
+
+    private synchronized Mapping load(Path key) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.retain()) { // loaded by another thread meanwhile
+            entry.lastAccess = clock.incrementAndGet();
+            hits.increment();
+            return new Mapping(entry);
+        }
+        misses.increment();
+
+        BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        long size = attrs.size();
+        if (size > maxEntryBytes || size > Integer.MAX_VALUE)
+            return null;
+        while (mappedBytes.get() + size > maxBytes && evictOne()) {
+            // evict until the new mapping fits
+        }
+
+        MappedByteBuffer buffer;
+        try (FileChannel fc = FileChannel.open(key, StandardOpenOption.READ)) {
+            buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        entry = new Entry(buffer, attrs.lastModifiedTime().toMillis(), size);
+        entry.lastAccess = clock.incrementAndGet();
+        entry.retain();
+        mappedBytes.addAndGet(size);
+        entries.put(key, entry);
+        return new Mapping(entry);
+    }
+
+    // Called with the lock held; scanning is fine since it only happens on a miss
+    private boolean evictOne() {
+        Map.Entry<Path, Entry> oldest = null;
+        for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+            if (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess)
+                oldest = e;
+        }
+        if (oldest == null)
+            return false;
+        if (entries.remove(oldest.getKey(), oldest.getValue())) {
+            evictions.increment();
+            drop(oldest.getValue());
+        }
+        return true;
+    }
+
+    // Give up the cache's own reference; unmaps once no caller holds one
+    private void drop(Entry entry) {
+        mappedBytes.addAndGet(-entry.size);
+        entry.release();
+    }
+
+    public void clear() {
+        for (Path key : entries.keySet()) {
+            Entry entry = entries.remove(key);
+            if (entry != null)
+                drop(entry);
+        }
+    }
+
+    public long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "entries = " + entries.size() +
+                ", mapped bytes = " + mappedBytes.get() +
+                ", hits = " + hits.sum() +
+                ", misses = " + misses.sum() +
+                ", evictions = " + evictions.sum() +
+                ", invalidations = " + invalidations.sum();
+    }
+
+    /**
+     * A caller's hold on a cached mapping. Each caller gets its own buffer
+     * view, so positions are independent.
+     */
+    public static final class Mapping {
+        private final Entry entry;
+        private final ByteBuffer buffer;
+        private boolean released;
+
+        private Mapping(Entry entry) {
+            this.entry = entry;
+            this.buffer = entry.buffer.duplicate();
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        public long size() {
+            return entry.size;
+        }
+
+        // The buffer must not be used afterwards; it may be unmapped
+        public void release() {
+            if (released)
+                return;
+            released = true;
+            entry.release();
+        }
+    }
+
+    private static final class Entry {
+        final MappedByteBuffer buffer;
+        final long mtime;
+        final long size;
+        // One reference for the cache plus one per outstanding Mapping
+        final AtomicInteger refs = new AtomicInteger(1);
+        volatile long lastAccess;
+        volatile long checkedAt = System.nanoTime();
+
+        Entry(MappedByteBuffer buffer, long mtime, long size) {
+            this.buffer = buffer;
+            this.mtime = mtime;
+            this.size = size;
+        }
+
+        // @return false if the entry has already been unmapped
+        boolean retain() {
+            int r;
+            do {
+                r = refs.get();
+                if (r == 0)
+                    return false;
+            } while (!refs.compareAndSet(r, r + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0)
+                Unmapper.unmap(buffer);
+        }
+    }
+
+    /**
+     * Releases a mapping without waiting for the GC: Unsafe.invokeCleaner()
+     * on Java 9+, the buffer's Cleaner on Java 8. If neither is accessible
+     * the mapping is left to the GC.
+     */
+    static final class Unmapper {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+            } catch (Exception e) {
+                invokeCleaner = null; // Java 8
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void unmap(MappedByteBuffer buffer) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } else {
+                    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buffer);
+                    if (cleaner != null)
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                // not accessible on this JVM; the GC will unmap it
+            }
+        }
+    }
+}
\ No newline at end of file
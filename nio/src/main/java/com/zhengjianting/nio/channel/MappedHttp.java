@@ -1,70 +1,518 @@
 package com.zhengjianting.nio.channel;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import com.zhengjianting.nio.buffer.BufferPool;
+import com.zhengjianting.nio.buffer.TextCodec;
+
 import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.net.URLConnection;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 
+/**
+ * A non-blocking HTTP/1.1 static file server. File bodies never pass through
+ * user space: small files are mapped and sent together with the response
+ * header in one gathering write, larger ones with FileChannel.transferTo()
+ * (sendfile). Mappings are kept in a MappedFileCache, so a hot file is mapped
+ * once rather than per request. Connections are kept alive and pipelined requests are answered
+ * in order. Single "bytes=" ranges are honoured. Request bodies are not
+ * read, so the connection is closed after a request with another method.
+ *
+ * Status lines and fixed headers are encoded once; per-response values such
+ * as Content-Length are written into a pooled header buffer as ASCII digits.
+ * Requests are parsed in the receive buffer with TextCodec, so only the
+ * target path and a Range value are turned into Strings.
+ *
+ * Set nio.metrics.dumpInterval (seconds) to print the cache statistics.
+ *
+ * Usage: MappedHttp <document root> [port] [cache megabytes]
+ */
 public class MappedHttp {
-    private static final String OUTPUT_FILE = "MappedHttp.out";
     private static final String LINE_SEP = "\r\n";
     private static final String SERVER_ID = "Server: Ronsoft Dummy Server";
-    private static final String HTTP_HDR = "HTTP/1.0 200 OK" + LINE_SEP + SERVER_ID + LINE_SEP;
-    private static final String HTTP_404_HDR = "HTTP/1.0 404 Not Found" + LINE_SEP + SERVER_ID + LINE_SEP;
-    private static final String MSG_404 = "Could not open file: ";
+    private static final int DEFAULT_PORT = 8080;
+    private static final int MAPPED_THRESHOLD = 256 * 1024; // larger files go through transferTo
+    private static final int DEFAULT_CACHE_MEGABYTES = 64;
+    private static final int METRICS_DUMP_INTERVAL = Integer.getInteger("nio.metrics.dumpInterval", 0);
+    private static final int MAX_REQUEST_HEAD = 8 * 1024;
+    private static final int MAX_PIPELINED = 16; // queued responses before reads pause
+
+    private static final byte[] HTTP_200 = bytes("HTTP/1.1 200 OK" + LINE_SEP);
+    private static final byte[] HTTP_206 = bytes("HTTP/1.1 206 Partial Content" + LINE_SEP);
+    private static final byte[] HTTP_400 = bytes("HTTP/1.1 400 Bad Request" + LINE_SEP);
+    private static final byte[] HTTP_404 = bytes("HTTP/1.1 404 Not Found" + LINE_SEP);
+    private static final byte[] HTTP_405 = bytes("HTTP/1.1 405 Method Not Allowed" + LINE_SEP);
+    private static final byte[] HTTP_416 = bytes("HTTP/1.1 416 Range Not Satisfiable" + LINE_SEP);
+    private static final byte[] COMMON_HDRS = bytes(SERVER_ID + LINE_SEP + "Accept-Ranges: bytes" + LINE_SEP);
+    private static final byte[] CONTENT_LENGTH = bytes("Content-Length: ");
+    private static final byte[] CONTENT_TYPE = bytes("Content-Type: ");
+    private static final byte[] CONTENT_RANGE = bytes("Content-Range: bytes ");
+    private static final byte[] CONNECTION_CLOSE = bytes("Connection: close" + LINE_SEP);
+    private static final byte[] CONNECTION_KEEP_ALIVE = bytes("Connection: keep-alive" + LINE_SEP);
+    private static final byte[] CRLF = bytes(LINE_SEP);
+    private static final byte[] TEXT_PLAIN = bytes("text/plain");
+    private static final byte[] MSG_400 = bytes("Bad request" + LINE_SEP);
+    private static final byte[] MSG_404 = bytes("Could not open file" + LINE_SEP);
+    private static final byte[] MSG_405 = bytes("Only GET and HEAD are supported" + LINE_SEP);
+    private static final byte[] OCTET_STREAM = bytes("application/octet-stream");
+    private static final byte[] HEAD_END = bytes(LINE_SEP + LINE_SEP);
+
+    private final Path root;
+    private final MappedFileCache cache;
+    private final Map<String, byte[]> contentTypes = new HashMap<>(); // only touched by the selector thread
+
+    public MappedHttp(Path root, long cacheBytes) throws IOException {
+        this.root = root.toRealPath();
+        this.cache = new MappedFileCache(cacheBytes, MAPPED_THRESHOLD, MappedFileCache.DEFAULT_CHECK_INTERVAL_NANOS);
+    }
+
+    public MappedFileCache getCache() {
+        return cache;
+    }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.err.println("Usage: filename");
+            System.err.println("Usage: document-root [port] [cache megabytes]");
             return;
         }
-        String file = args[0];
-        ByteBuffer header = ByteBuffer.wrap(bytes(HTTP_HDR));
-        ByteBuffer dynhdrs = ByteBuffer.allocate(128);
-        ByteBuffer[] gather = { header, dynhdrs, null };
-        long contentLength = -1;
-        String contentType = "unknown/unknown";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        int cacheMegabytes = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CACHE_MEGABYTES;
+        MappedHttp http = new MappedHttp(Paths.get(args[0]), cacheMegabytes * 1024L * 1024L);
+        if (METRICS_DUMP_INTERVAL > 0)
+            http.startDump(System.out, METRICS_DUMP_INTERVAL);
+        http.serve(port);
+    }
+
+    // Print the cache statistics every period seconds, from a daemon thread
+    public void startDump(final PrintStream out, final long periodSeconds) {
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(periodSeconds * 1000);
+                    out.println("MappedHttp cache: " + cache);
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }, "MappedHttp-metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void serve(int port) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        System.out.println("Serving " + root + " on port " + port);
+
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        SocketChannel channel = server.accept();
+                        if (channel == null)
+                            continue;
+                        channel.configureBlocking(false);
+                        SelectionKey channelKey = channel.register(selector, SelectionKey.OP_READ);
+                        channelKey.attach(new HttpConnection(channelKey));
+                        continue;
+                    }
+                    HttpConnection connection = (HttpConnection) key.attachment();
+                    if (key.isWritable())
+                        connection.flush();
+                    if (key.isValid() && key.isReadable())
+                        connection.read();
+                } catch (IOException e) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof HttpConnection)
+                        ((HttpConnection) attachment).close();
+                    else
+                        key.channel().close();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one client connection: the bytes of a partly received request
+     * and the responses not yet fully written, oldest first.
+     */
+    private class HttpConnection {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final ByteBuffer in = BufferPool.getDefault().allocate(MAX_REQUEST_HEAD);
+        private final Deque<Response> responses = new ArrayDeque<>();
+        private boolean closing; // a response carries Connection: close
+        private int valueStart; // header value found by findHeader()
+        private int valueEnd;
+
+        HttpConnection(SelectionKey key) {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+        }
+
+        void read() throws IOException {
+            int count = channel.read(in);
+            if (count < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            // Answer every complete request in the buffer (pipelining)
+            int end;
+            while (!closing && (end = TextCodec.indexOf(in, in.position(), in.limit(), HEAD_END)) >= 0) {
+                responses.add(respond(in, in.position(), end));
+                in.position(end + 4);
+            }
+            in.compact();
+            if (!in.hasRemaining() && !closing) {
+                closing = true;
+                responses.add(error(HTTP_400, MSG_400, CONNECTION_CLOSE)); // request head too large
+            }
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!responses.isEmpty()) {
+                Response response = responses.peek();
+                if (!response.writeTo(channel))
+                    break; // socket buffer full, wait for OP_WRITE
+                responses.poll();
+                response.release();
+                if (response.close) {
+                    close();
+                    return;
+                }
+            }
+            int ops = 0;
+            if (!closing && responses.size() < MAX_PIPELINED)
+                ops |= SelectionKey.OP_READ;
+            if (!responses.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        void close() throws IOException {
+            Response response;
+            while ((response = responses.poll()) != null)
+                response.release();
+            BufferPool.getDefault().release(in);
+            channel.close();
+        }
+
+        // Parse the request head in buffer[start, end) in place; only the target and a Range value become Strings
+        private Response respond(ByteBuffer buffer, int start, int end) {
+            int lineEnd = TextCodec.indexOf(buffer, start, end, (byte) '\r');
+            if (lineEnd < 0)
+                lineEnd = end;
+            int sp1 = TextCodec.indexOf(buffer, start, lineEnd, (byte) ' ');
+            int sp2 = sp1 < 0 ? -1 : TextCodec.indexOf(buffer, sp1 + 1, lineEnd, (byte) ' ');
+            if (sp2 < 0 || TextCodec.indexOf(buffer, sp2 + 1, lineEnd, (byte) ' ') >= 0
+                    || !TextCodec.startsWithAscii(buffer, sp2 + 1, lineEnd - sp2 - 1, "HTTP/1."))
+                return error(HTTP_400, MSG_400, CONNECTION_CLOSE);
+
+            // The Connection header of the response, or null for HTTP/1.1 keep-alive
+            byte[] connection;
+            if (TextCodec.equalsAscii(buffer, sp2 + 1, lineEnd - sp2 - 1, "HTTP/1.0"))
+                connection = headerEquals(buffer, lineEnd, end, "connection", "keep-alive") ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE;
+            else
+                connection = headerEquals(buffer, lineEnd, end, "connection", "close") ? CONNECTION_CLOSE : null;
+
+            boolean headOnly = TextCodec.equalsAscii(buffer, start, sp1 - start, "HEAD");
+            if (!headOnly && !TextCodec.equalsAscii(buffer, start, sp1 - start, "GET")) {
+                // The request may have a body, which would be parsed as the next request
+                closing = true;
+                return error(HTTP_405, MSG_405, CONNECTION_CLOSE);
+            }
+            closing |= connection == CONNECTION_CLOSE;
+
+            Path file = resolve(TextCodec.decode(buffer, sp1 + 1, sp2 - sp1 - 1));
+            if (file == null)
+                return error(HTTP_404, MSG_404, connection);
+            String range = null;
+            if (findHeader(buffer, lineEnd, end, "range"))
+                range = TextCodec.decode(buffer, valueStart, valueEnd - valueStart);
+            try {
+                return fileResponse(file, range, headOnly, connection);
+            } catch (IOException e) {
+                return error(HTTP_404, MSG_404, connection);
+            }
+        }
+
+        private boolean headerEquals(ByteBuffer buffer, int from, int end, String name, String value) {
+            return findHeader(buffer, from, end, name)
+                    && TextCodec.equalsIgnoreCaseAscii(buffer, valueStart, valueEnd - valueStart, value);
+        }
+
+        /**
+         * Look for the named header in the lines of buffer[from, end), from
+         * being the CR ending the request line. If found, its trimmed value is
+         * left in [valueStart, valueEnd).
+         */
+        private boolean findHeader(ByteBuffer buffer, int from, int end, String name) {
+            while (from < end) {
+                int start = from + 2;
+                int lineEnd = TextCodec.indexOf(buffer, start, end, (byte) '\r');
+                if (lineEnd < 0)
+                    lineEnd = end;
+                int colon = TextCodec.indexOf(buffer, start, lineEnd, (byte) ':');
+                if (colon > start && TextCodec.equalsIgnoreCaseAscii(buffer, start,
+                        TextCodec.trimEnd(buffer, start, colon) - start, name)) {
+                    valueStart = TextCodec.skipWhitespace(buffer, colon + 1, lineEnd);
+                    valueEnd = TextCodec.trimEnd(buffer, valueStart, lineEnd);
+                    return true;
+                }
+                from = lineEnd;
+            }
+            return false;
+        }
+    }
+
+    private Response fileResponse(Path file, String range, boolean headOnly, byte[] connection) throws IOException {
+        // Small files come from the mapping cache, so a hit opens nothing
+        MappedFileCache.Mapping mapping = cache.acquire(file);
+        FileChannel fc = null;
+        long size;
+        if (mapping != null) {
+            size = mapping.size();
+        } else {
+            fc = FileChannel.open(file, StandardOpenOption.READ);
+            size = fc.size();
+        }
+        long start = 0;
+        long end = size - 1;
+        byte[] status = HTTP_200;
+        if (range != null) {
+            long[] bounds = parseRange(range, size);
+            if (bounds == null) {
+                Response response = new Response(BufferPool.getDefault().allocate(512), connection == CONNECTION_CLOSE);
+                response.mapping = mapping;
+                response.file = fc;
+                ByteBuffer header = response.header;
+                header.put(HTTP_416).put(COMMON_HDRS);
+                header.put(CONTENT_RANGE).put((byte) '*').put((byte) '/');
+                putNumber(header, size).put(CRLF);
+                header.put(CONTENT_LENGTH).put((byte) '0').put(CRLF);
+                finish(header, connection);
+                return response;
+            }
+            if (bounds.length == 2) {
+                start = bounds[0];
+                end = bounds[1];
+                status = HTTP_206;
+            }
+        }
+        long length = end - start + 1;
+
+        Response response = new Response(BufferPool.getDefault().allocate(512), connection == CONNECTION_CLOSE);
+        response.mapping = mapping;
+        response.file = fc;
+        ByteBuffer header = response.header;
+        header.put(status).put(COMMON_HDRS);
+        header.put(CONTENT_TYPE).put(contentType(file.getFileName().toString())).put(CRLF);
+        header.put(CONTENT_LENGTH);
+        putNumber(header, length).put(CRLF);
+        if (status == HTTP_206) {
+            header.put(CONTENT_RANGE);
+            putNumber(header, start).put((byte) '-');
+            putNumber(header, end).put((byte) '/');
+            putNumber(header, size).put(CRLF);
+        }
+        finish(header, connection);
+
+        if (headOnly || length == 0)
+            return response;
+        if (mapping != null) {
+            // One gathering write sends the header and the cached pages
+            ByteBuffer body = mapping.buffer();
+            body.limit((int) (start + length)).position((int) start);
+            response.gather = new ByteBuffer[] { header, body };
+        } else {
+            response.position = start;
+            response.remaining = length;
+        }
+        return response;
+    }
+
+    private Response error(byte[] status, byte[] body, byte[] connection) {
+        Response response = new Response(BufferPool.getDefault().allocate(512), connection == CONNECTION_CLOSE);
+        ByteBuffer header = response.header;
+        header.put(status).put(COMMON_HDRS);
+        header.put(CONTENT_TYPE).put(TEXT_PLAIN).put(CRLF);
+        header.put(CONTENT_LENGTH);
+        putNumber(header, body.length).put(CRLF);
+        if (connection != null)
+            header.put(connection);
+        header.put(CRLF).put(body);
+        header.flip();
+        return response;
+    }
+
+    // connection is the Connection header line, or null for none
+    private static void finish(ByteBuffer header, byte[] connection) {
+        if (connection != null)
+            header.put(connection);
+        header.put(CRLF);
+        header.flip();
+    }
+
+    // Map the request target to a regular file under the document root, or null
+    private Path resolve(String target) {
+        try {
+            int query = target.indexOf('?');
+            String path = new URI(query < 0 ? target : target.substring(0, query)).getPath();
+            if (path == null || !path.startsWith("/"))
+                return null;
+            Path file = root.resolve(path.substring(1)).normalize();
+            if (!file.startsWith(root) || !Files.isRegularFile(file))
+                return null;
+            file = file.toRealPath();
+            return file.startsWith(root) ? file : null; // no escaping through symlinks
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private byte[] contentType(String name) {
+        String type = URLConnection.guessContentTypeFromName(name);
+        if (type == null)
+            return OCTET_STREAM;
+        byte[] encoded = contentTypes.get(type);
+        if (encoded == null) {
+            encoded = bytes(type);
+            contentTypes.put(type, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Parse a Range header value against a file of the given size.
+     * @return {start, end} for a satisfiable single range, an empty array if
+     *  the header should be ignored (multiple ranges, another unit, or an
+     *  invalid range such as a last byte before the first), or null if a
+     *  valid range cannot be satisfied
+     */
+    static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return new long[0];
+        String spec = range.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return new long[0];
         try {
-            FileInputStream fis = new FileInputStream(file);
-            FileChannel fc = fis.getChannel();
-            MappedByteBuffer fileData = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-            gather[2] = fileData;
-            contentLength = fc.size();
-            contentType = URLConnection.guessContentTypeFromName(file);
-        } catch (IOException e) {
-            // file could not be opened, report problem
-            ByteBuffer buf = ByteBuffer.allocate(128);
-            String msg = MSG_404 + e + LINE_SEP;
-            buf.put(bytes(msg));
-            buf.flip();
-            // use the HTTP error response
-            gather[0] = ByteBuffer.wrap(bytes(HTTP_404_HDR));
-            gather[2] = buf;
-            contentLength = msg.length();
-            contentType = "text/plain";
-        }
-        StringBuffer sb = new StringBuffer();
-        sb.append("Content-Length: ").append(contentLength);
-        sb.append(LINE_SEP);
-        sb.append("Content-Type: ").append(contentType);
-        sb.append(LINE_SEP).append(LINE_SEP);
-        dynhdrs.put(bytes(sb.toString()));
-        dynhdrs.flip();
-
-        FileOutputStream fos = new FileOutputStream(OUTPUT_FILE);
-        FileChannel out = fos.getChannel();
-        while (out.write(gather) > 0) {
-            // Empty body; loop util all buffers are empty
-        }
-        out.close();
-        System.out.println("output written to: " + OUTPUT_FILE);
+            long start;
+            long end;
+            if (dash == 0) { // suffix: the last N bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0 || size == 0)
+                    return null;
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash == spec.length() - 1) {
+                    end = size - 1;
+                } else {
+                    long last = Long.parseLong(spec.substring(dash + 1));
+                    if (last < start)
+                        return new long[0]; // syntactically invalid, so the header is ignored (RFC 7233 2.1)
+                    end = Math.min(last, size - 1);
+                }
+            }
+            if (start >= size)
+                return null;
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    // Write a non-negative number as ASCII digits without creating a String
+    private static ByteBuffer putNumber(ByteBuffer buffer, long value) {
+        if (value == 0)
+            return buffer.put((byte) '0');
+        int digits = 0;
+        for (long v = value; v > 0; v /= 10)
+            digits++;
+        int pos = buffer.position() + digits;
+        for (long v = value; v > 0; v /= 10)
+            buffer.put(--pos, (byte) ('0' + v % 10));
+        buffer.position(buffer.position() + digits);
+        return buffer;
     }
 
     private static byte[] bytes(String string) {
         return string.getBytes(StandardCharsets.US_ASCII);
     }
+
+    /**
+     * A response being written: a pooled header buffer followed by either a
+     * cached mapping (written together with the header) or a file region
+     * (written with transferTo after the header).
+     */
+    private static final class Response {
+        final ByteBuffer header;
+        final boolean close;
+        ByteBuffer[] gather;
+        MappedFileCache.Mapping mapping;
+        FileChannel file;
+        long position;
+        long remaining;
+
+        Response(ByteBuffer header, boolean close) {
+            this.header = header;
+            this.close = close;
+        }
+
+        // @return true once everything has been written
+        boolean writeTo(SocketChannel channel) throws IOException {
+            if (gather != null) {
+                channel.write(gather);
+                return !gather[1].hasRemaining();
+            }
+            if (header.hasRemaining()) {
+                channel.write(header);
+                if (header.hasRemaining())
+                    return false;
+            }
+            while (remaining > 0) {
+                long n = file.transferTo(position, remaining, channel);
+                if (n == 0)
+                    return false;
+                position += n;
+                remaining -= n;
+            }
+            return true;
+        }
+
+        void release() throws IOException {
+            BufferPool.getDefault().release(header);
+            if (mapping != null)
+                mapping.release();
+            if (file != null)
+                file.close();
+        }
+    }
 }
\ No newline at end of file
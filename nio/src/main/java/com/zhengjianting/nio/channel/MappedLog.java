@@ -0,0 +1,451 @@
+package com.zhengjianting.nio.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records kept in memory-mapped segment files. Each
+ * segment is created at its full size as a sparse file (the hole FileHole
+ * demonstrates), mapped once, and filled by any number of threads: a writer
+ * claims its byte range with a CAS on the segment's tail and copies the
+ * record straight into the mapping, so appending makes no system call.
+ *
+ * A record is an 8-byte header followed by the payload, padded to a
+ * multiple of 8 bytes. The header holds the payload length, written as soon
+ * as the range is claimed, and a checksum of the payload (its CRC32 with the
+ * low bit set, so never zero), written last as the commit marker. A zero
+ * length marks space nobody has claimed yet, a negative one a dead record
+ * of that size, and END the sealed end of a segment. The offset of a record
+ * is its position in the whole log: the base offset of its segment (also
+ * the segment's file name) plus its position in the segment. When a record
+ * does not fit, the segment is sealed and the log rolls over to a new
+ * segment whose base is the end of the full one.
+ *
+ * Since the size of every claimed record is known, a record whose writer
+ * died or is still copying never hides the ones behind it. next() stops at
+ * an uncommitted record, as at one not yet written, rather than skipping
+ * it. Recovery marks uncommitted and corrupt records dead and keeps every
+ * record after them; opening an existing log therefore reads and checks
+ * every record.
+ *
+ * force() is a group commit: callers take a ticket after their records are
+ * in the mapping, and one msync on behalf of the first caller covers every
+ * ticket taken before it started, so concurrent callers share the cost.
+ * Before the msync it waits until every range claimed so far has its
+ * length written, so no forced record ever lies behind a hole of unknown
+ * size.
+ *
+ * Usage: MappedLog <directory> [threads] [records per thread] [record size]
+ */
+public class MappedLog implements AutoCloseable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8; // length, checksum
+    private static final int END = Integer.MIN_VALUE; // length field of the seal at the end of a full segment
+    private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new);
+
+    private final Path directory;
+    private final int segmentSize;
+    // Base offset -> segment; floorEntry() finds the segment holding an offset
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private volatile Segment active;
+
+    private final Object forceLock = new Object();
+    private final AtomicLong tickets = new AtomicLong();
+    private volatile long forcedTicket;
+    private final AtomicLong forces = new AtomicLong();
+
+    /**
+     * Open the log in the directory, or create it. Existing segments are
+     * recovered: every record is checked, and the last segment is scanned
+     * to find where it ends.
+     * @param segmentSize a multiple of 8
+     */
+    public MappedLog(Path directory, int segmentSize) throws IOException {
+        if (segmentSize < 2 * HEADER || segmentSize % HEADER != 0)
+            throw new IllegalArgumentException("segment size: " + segmentSize);
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                segments.put(base, new Segment(file, base, 0));
+            }
+        }
+        if (segments.isEmpty()) {
+            active = newSegment(0);
+        } else {
+            active = segments.lastEntry().getValue();
+            for (Segment segment : segments.values())
+                segment.recover(segment == active);
+        }
+    }
+
+    public MappedLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Append the remaining bytes of record.
+     * @return the offset of the record, to pass to read()
+     */
+    public long append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        if (length == 0 || length > segmentSize - HEADER)
+            throw new IllegalArgumentException("record length: " + length);
+        int checksum = checksum(record);
+        while (true) {
+            Segment segment = active;
+            int position = segment.claim(HEADER + align(length), length);
+            if (position >= 0) {
+                segment.write(position, record, checksum);
+                return segment.base + position;
+            }
+            roll(segment);
+        }
+    }
+
+    public long append(byte[] record) throws IOException {
+        return append(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * Make everything appended by this thread durable. Callers arriving
+     * while an msync is running wait for it and then run one msync for all
+     * of them together.
+     */
+    public void force() {
+        long ticket = tickets.incrementAndGet();
+        if (forcedTicket >= ticket)
+            return;
+        synchronized (forceLock) {
+            if (forcedTicket >= ticket)
+                return;
+            long covered = tickets.get(); // everyone up to here copied before taking a ticket
+            for (Segment segment : segments.values()) {
+                if (segment.dirty) {
+                    segment.dirty = false;
+                    segment.awaitHeaders();
+                    segment.buffer.force();
+                }
+            }
+            forces.incrementAndGet();
+            forcedTicket = covered;
+        }
+    }
+
+    /**
+     * Read the record at an offset returned by append(). Offsets handed to
+     * another thread must be published safely, like any other data.
+     * @return a read-only view of the payload
+     */
+    public ByteBuffer read(long offset) {
+        Segment segment = segmentFor(offset);
+        int position = (int) (offset - segment.base);
+        int length = committedLength(segment, offset);
+        ByteBuffer view = segment.buffer.asReadOnlyBuffer();
+        view.limit(position + HEADER + length).position(position + HEADER);
+        return view.slice();
+    }
+
+    /**
+     * @return the offset of the committed record after the one at offset,
+     *  skipping dead records, or -1 if the next record is not written yet
+     */
+    public long next(long offset) {
+        Segment segment = segmentFor(offset);
+        int position = (int) (offset - segment.base);
+        position += HEADER + align(committedLength(segment, offset));
+        while (true) {
+            int length = position + HEADER <= segment.capacity ? segment.buffer.getInt(position) : END;
+            if (length == END) {
+                Map.Entry<Long, Segment> following = segments.higherEntry(segment.base);
+                if (following == null)
+                    return -1; // the next segment is being created
+                segment = following.getValue();
+                position = 0;
+            } else if (length < 0) {
+                position += HEADER + align(-length); // dead
+            } else if (length == 0 || segment.buffer.getInt(position + 4) == 0) {
+                return -1; // not claimed yet, or its writer is still copying
+            } else {
+                return segment.base + position;
+            }
+        }
+    }
+
+    private Segment segmentFor(long offset) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null)
+            throw new IllegalArgumentException("offset before the start of the log: " + offset);
+        return entry.getValue();
+    }
+
+    private static int committedLength(Segment segment, long offset) {
+        int position = (int) (offset - segment.base);
+        int length = position + HEADER <= segment.capacity ? segment.buffer.getInt(position) : 0;
+        if (length <= 0 || segment.buffer.getInt(position + 4) == 0)
+            throw new IllegalArgumentException("no record at offset " + offset);
+        return length;
+    }
+
+    // The commit marker for a payload: its CRC32 with the low bit set, so never 0
+    private static int checksum(ByteBuffer payload) {
+        CRC32 crc = CRC.get();
+        crc.reset();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue() | 1;
+    }
+
+    private static int align(int length) {
+        return (length + HEADER - 1) & -HEADER;
+    }
+
+    public long getStartOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * Delete the segments that end at or before offset, except the active
+     * one. Their mappings are left to the GC, since readers may still hold
+     * views into them; the disk space is freed once that happens.
+     * @return the number of segments deleted
+     */
+    public int deleteBefore(long offset) throws IOException {
+        int deleted = 0;
+        Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == active || segment.base + segment.capacity > offset)
+                break;
+            it.remove();
+            Files.delete(segment.file.toPath());
+            deleted++;
+        }
+        return deleted;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    // msync calls made, each covering one or more force() callers
+    public long getForceCount() {
+        return forces.get();
+    }
+
+    public long getForceRequests() {
+        return tickets.get();
+    }
+
+    /**
+     * Force and unmap all segments. The log must not be used afterwards,
+     * nor any buffer returned by read().
+     */
+    @Override
+    public void close() {
+        force();
+        for (Segment segment : segments.values())
+            MappedFileCache.Unmapper.unmap(segment.buffer);
+        segments.clear();
+    }
+
+    private synchronized void roll(Segment full) throws IOException {
+        if (active != full)
+            return; // another writer already rolled
+        active = newSegment(full.base + full.capacity);
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        File file = directory.resolve(String.format("%020d%s", base, SUFFIX)).toFile();
+        Segment segment = new Segment(file, base, segmentSize);
+        segments.put(base, segment);
+        return segment;
+    }
+
+    private static final class Segment {
+        final File file;
+        final long base;
+        final int capacity;
+        final MappedByteBuffer buffer;
+        final AtomicInteger tail = new AtomicInteger();
+        volatile boolean dirty;
+
+        // @param size 0 to map an existing file at its current size
+        Segment(File file, long base, int size) throws IOException {
+            this.file = file;
+            this.base = base;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (size > 0)
+                    raf.setLength(size); // sparse; blocks are allocated as pages are first written
+                this.capacity = (int) raf.length();
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        // Ranges below this have their length written; guarded by forceLock
+        int checked;
+
+        /**
+         * Claim size bytes and write the record's length into the header at
+         * once, so the size of the range is known even if the writer dies.
+         * @return the position claimed, or -1 if the record does not fit; the
+         *  segment is then sealed and readers move on to the next one
+         */
+        int claim(int size, int length) {
+            while (true) {
+                int current = tail.get();
+                if (current + size > capacity) {
+                    if (current == capacity)
+                        return -1;
+                    if (tail.compareAndSet(current, capacity)) {
+                        if (current + HEADER <= capacity)
+                            buffer.putInt(current, END);
+                        return -1;
+                    }
+                    continue;
+                }
+                if (tail.compareAndSet(current, current + size)) {
+                    buffer.putInt(current, length);
+                    return current;
+                }
+            }
+        }
+
+        void write(int position, ByteBuffer record, int checksum) {
+            ByteBuffer target = buffer.duplicate();
+            target.position(position + HEADER);
+            target.put(record.duplicate());
+            buffer.putInt(position + 4, checksum); // checksum last: zero means not committed
+            if (!dirty)
+                dirty = true;
+        }
+
+        /**
+         * Wait for the writers which have claimed a range but not yet written
+         * its length; it is their next store, so the wait is short.
+         */
+        void awaitHeaders() {
+            int end = tail.get();
+            while (checked < end && checked + HEADER <= capacity) {
+                int length = buffer.getInt(checked);
+                if (length == 0) {
+                    Thread.yield();
+                } else if (length == END) {
+                    checked = capacity;
+                } else {
+                    checked += HEADER + align(Math.abs(length));
+                }
+            }
+        }
+
+        /**
+         * Check every record, marking the uncommitted and corrupt ones dead,
+         * and find the end of the records. A segment other than the last is
+         * sealed there. The rest of the last one is zeroed so that records
+         * appended there are not followed by stale ones; only pages holding
+         * data are written, so the sparse part of the file stays unallocated.
+         */
+        void recover(boolean last) {
+            int end = 0;
+            while (end + HEADER <= capacity) {
+                int length = buffer.getInt(end);
+                if (length == END) {
+                    tail.set(capacity);
+                    checked = capacity;
+                    return;
+                }
+                int size = Math.abs(length);
+                if (length == 0 || size > capacity - end - HEADER)
+                    break; // never claimed; or stale data from an older file
+                if (length > 0) {
+                    ByteBuffer payload = buffer.duplicate();
+                    payload.limit(end + HEADER + length).position(end + HEADER);
+                    if (buffer.getInt(end + 4) != checksum(payload)) {
+                        buffer.putInt(end, -length);
+                        dirty = true;
+                    }
+                }
+                end += HEADER + align(size);
+            }
+            if (!last) {
+                if (end + HEADER <= capacity) {
+                    buffer.putInt(end, END);
+                    dirty = true;
+                }
+                tail.set(capacity);
+                checked = capacity;
+                return;
+            }
+            int position = end;
+            for (; position + 8 <= capacity; position += 8) {
+                if (buffer.getLong(position) != 0) {
+                    buffer.putLong(position, 0);
+                    dirty = true;
+                }
+            }
+            for (; position < capacity; position++) {
+                if (buffer.get(position) != 0) {
+                    buffer.put(position, (byte) 0);
+                    dirty = true;
+                }
+            }
+            tail.set(end);
+            checked = end;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: directory [threads] [records per thread] [record size]");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int records = args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000;
+        int recordSize = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+        final MappedLog log = new MappedLog(Paths.get(args[0]));
+        final byte[] payload = new byte[recordSize];
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    for (int i = 1; i <= records; i++) {
+                        log.append(payload);
+                        if (i % 1000 == 0)
+                            log.force();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        log.force();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d records in %.2f s (%.0f records/s), %d segments, %d force requests, %d msyncs%n",
+                (long) threads * records, seconds, threads * records / seconds,
+                log.getSegmentCount(), log.getForceRequests(), log.getForceCount());
+        log.close();
+    }
+}
\ No newline at end of file
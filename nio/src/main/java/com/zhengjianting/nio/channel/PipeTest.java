@@ -1,5 +1,8 @@
 package com.zhengjianting.nio.channel;
 
+import com.zhengjianting.nio.buffer.BufferPool;
+import com.zhengjianting.nio.buffer.TextCodec;
+
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.Pipe;
@@ -7,23 +10,41 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.util.Random;
 
+/**
+ * Usage: PipeTest [reps] [pipe|spin|yield|park]
+ * "pipe" uses java.nio.channels.Pipe; the others a RingPipe with that wait
+ * strategy (park by default). The transfer rate is printed to stderr.
+ */
 public class PipeTest {
     public static void main(String[] args) throws Exception {
+        int reps = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String mode = args.length > 1 ? args[1] : "park";
         WritableByteChannel out = Channels.newChannel(System.out);
-        ReadableByteChannel workerChannel = startWorker(10);
-        ByteBuffer buffer = ByteBuffer.allocate(100);
-        while (workerChannel.read(buffer) >= 0) {
+        long start = System.nanoTime();
+        ReadableByteChannel workerChannel = startWorker(reps, mode);
+        ByteBuffer buffer = BufferPool.getDefault().allocate(64 * 1024); // one read takes many messages
+        long bytes = 0;
+        int n;
+        while ((n = workerChannel.read(buffer)) >= 0) {
+            bytes += n;
             buffer.flip();
             out.write(buffer);
             buffer.clear();
         }
+        BufferPool.getDefault().release(buffer);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%s: %d bytes in %.3f s (%.1f MB/s)%n", mode, bytes, seconds, bytes / seconds / (1024 * 1024));
     }
 
     // This method can return a SocketChannel or FileChannel instance just as easily
-    private static ReadableByteChannel startWorker(int reps) throws Exception {
-        Pipe pipe = Pipe.open();
-        Worker worker = new Worker(pipe.sink(), reps);
-        worker.start();
+    private static ReadableByteChannel startWorker(int reps, String mode) throws Exception {
+        if ("pipe".equals(mode)) {
+            Pipe pipe = Pipe.open();
+            new Worker(pipe.sink(), reps).start();
+            return pipe.source();
+        }
+        RingPipe pipe = new RingPipe(RingPipe.DEFAULT_CAPACITY, RingPipe.WaitStrategy.valueOf(mode.toUpperCase()));
+        new Worker(pipe.sink(), reps).start();
         return pipe.source();
     }
 
@@ -42,7 +63,7 @@ public class PipeTest {
 
         @Override
         public void run() {
-            ByteBuffer buffer = ByteBuffer.allocate(100);
+            ByteBuffer buffer = BufferPool.getDefault().allocate(100);
             try {
                 for (int i = 0; i < reps; i++) {
                     doSomeWork(buffer);
@@ -54,6 +75,8 @@ public class PipeTest {
                 channel.close();
             } catch (Exception e) {
                 e.printStackTrace();
+            } finally {
+                BufferPool.getDefault().release(buffer);
             }
         }
 
@@ -69,9 +92,11 @@ public class PipeTest {
         private void doSomeWork(ByteBuffer buffer) {
             String product = products[rand.nextInt(products.length)];
             buffer.clear();
-            buffer.put(product.getBytes());
-            buffer.put("\r\n".getBytes());
+            TextCodec.encodeAscii(product, buffer); // straight into the buffer, no byte[] per message
+            buffer.put(CRLF);
             buffer.flip();
         }
+
+        private static final byte[] CRLF = "\r\n".getBytes();
     }
 }
\ No newline at end of file
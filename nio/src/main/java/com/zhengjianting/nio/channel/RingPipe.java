@@ -0,0 +1,218 @@
+package com.zhengjianting.nio.channel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process replacement for java.nio.channels.Pipe between exactly one
+ * writing and one reading thread. Bytes go through a direct ring buffer
+ * whose read and write counters sit on cache lines of their own; each side
+ * publishes its counter with an ordered store and caches the other side's,
+ * so a transfer is a memory copy with no lock and no system call.
+ *
+ * A write copies as much as fits, possibly many messages at once, and like
+ * a blocking Pipe waits until all of its bytes are in. A read returns
+ * whatever is available up to the buffer's space, waiting only while the
+ * ring is empty, and -1 once the sink is closed and the ring drained. How
+ * a side waits is chosen by the WaitStrategy.
+ */
+public class RingPipe {
+    public enum WaitStrategy {
+        /** Busy-spin: lowest latency, burns a core per waiting side; only for dedicated cores. */
+        SPIN,
+        /** Spin briefly, then Thread.yield(). */
+        YIELD,
+        /** Spin, yield, then park for up to PARK_NANOS at a time; cheapest when idle. */
+        PARK
+    }
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+    private static final long PARK_NANOS = 50_000;
+
+    private final ByteBuffer ring;
+    private final int mask;
+    private final WaitStrategy strategy;
+    private final Counter written = new Counter(); // total bytes written, by the sink
+    private final Counter read = new Counter(); // total bytes read, by the source
+    private volatile boolean sinkClosed;
+    private volatile boolean sourceClosed;
+    private final SinkChannel sink;
+    private final SourceChannel source;
+
+    /**
+     * @param capacity
+     *  Rounded up to a power of two.
+     */
+    public RingPipe(int capacity, WaitStrategy strategy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 64) - 1) << 1;
+        this.ring = ByteBuffer.allocateDirect(size);
+        this.mask = size - 1;
+        this.strategy = strategy;
+        this.sink = new SinkChannel();
+        this.source = new SourceChannel();
+    }
+
+    public static RingPipe open() {
+        return new RingPipe(DEFAULT_CAPACITY, WaitStrategy.PARK);
+    }
+
+    public SinkChannel sink() {
+        return sink;
+    }
+
+    public SourceChannel source() {
+        return source;
+    }
+
+    // Backs off according to the strategy; counter starts at 0 for each wait
+    private int idle(int counter) {
+        if (strategy == WaitStrategy.SPIN || counter < SPIN_TRIES) {
+            // spin
+        } else if (strategy == WaitStrategy.YIELD || counter < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return counter + 1;
+    }
+
+    public final class SinkChannel implements WritableByteChannel {
+        private final ByteBuffer view = ring.duplicate();
+        private long cachedRead; // last value of read seen, refreshed only when the ring looks full
+
+        private SinkChannel() {
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (sinkClosed)
+                throw new ClosedChannelException();
+            int total = src.remaining();
+            long tail = written.value;
+            int waits = 0;
+            while (src.hasRemaining()) {
+                if (sourceClosed)
+                    throw new IOException("Broken pipe");
+                int free = (int) (ring.capacity() - (tail - cachedRead));
+                if (free == 0) {
+                    cachedRead = read.get();
+                    free = (int) (ring.capacity() - (tail - cachedRead));
+                    if (free == 0) {
+                        waits = idle(waits);
+                        continue;
+                    }
+                }
+                waits = 0;
+                int n = Math.min(free, src.remaining());
+                copyIn(src, (int) tail & mask, n);
+                tail += n;
+                written.lazySet(tail); // publish after the bytes are in place
+            }
+            return total;
+        }
+
+        // Copy n bytes from src into the ring at index, wrapping around the end
+        private void copyIn(ByteBuffer src, int index, int n) {
+            int first = Math.min(n, ring.capacity() - index);
+            int limit = src.limit();
+            src.limit(src.position() + first);
+            view.limit(index + first).position(index);
+            view.put(src);
+            if (first < n) {
+                src.limit(src.position() + n - first);
+                view.limit(n - first).position(0);
+                view.put(src);
+            }
+            src.limit(limit);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !sinkClosed;
+        }
+
+        @Override
+        public void close() {
+            sinkClosed = true;
+        }
+    }
+
+    public final class SourceChannel implements ReadableByteChannel {
+        private final ByteBuffer view = ring.duplicate();
+        private long cachedWritten; // last value of written seen, refreshed only when the ring looks empty
+
+        private SourceChannel() {
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (sourceClosed)
+                throw new ClosedChannelException();
+            if (!dst.hasRemaining())
+                return 0;
+            long head = read.value;
+            int waits = 0;
+            while (cachedWritten == head) {
+                boolean closed = sinkClosed; // read before written, so no write is missed
+                cachedWritten = written.get();
+                if (cachedWritten != head)
+                    break;
+                if (closed)
+                    return -1;
+                waits = idle(waits);
+            }
+            int n = (int) Math.min(cachedWritten - head, dst.remaining());
+            int index = (int) head & mask;
+            int first = Math.min(n, ring.capacity() - index);
+            view.limit(index + first).position(index);
+            dst.put(view);
+            if (first < n) {
+                view.limit(n - first).position(0);
+                dst.put(view);
+            }
+            read.lazySet(head + n); // the sink may reuse the space once this is visible
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !sourceClosed;
+        }
+
+        @Override
+        public void close() {
+            sourceClosed = true;
+        }
+    }
+
+    // A volatile long padded on both sides so the two counters never share a cache line
+    abstract static class LeftPadding {
+        long p01, p02, p03, p04, p05, p06, p07;
+    }
+
+    abstract static class Value extends LeftPadding {
+        volatile long value;
+    }
+
+    static final class Counter extends Value {
+        private static final AtomicLongFieldUpdater<Value> UPDATER =
+                AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+        long p11, p12, p13, p14, p15, p16, p17;
+
+        long get() {
+            return value;
+        }
+
+        void lazySet(long newValue) {
+            UPDATER.lazySet(this, newValue);
+        }
+    }
+}
\ No newline at end of file
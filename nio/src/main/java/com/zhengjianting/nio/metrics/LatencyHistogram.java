@@ -0,0 +1,125 @@
+package com.zhengjianting.nio.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values (typically nanoseconds)
+ * with log-linear buckets in the style of HdrHistogram: values below 128 get
+ * a bucket each, and every power-of-two range above that is split into 64
+ * buckets, so any recorded value is reported within about 1.6%.
+ *
+ * record() is a single atomic increment and never allocates, so it can be
+ * called from any number of threads on a hot path. Readers take a snapshot;
+ * the difference of two snapshots is the histogram of the interval between
+ * them.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 128
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    // Largest value which falls into the bucket at the given index
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long sub = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long total;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long count : counts)
+                total += count;
+            this.total = total;
+        }
+
+        // Histogram of the values recorded after the earlier snapshot was taken
+        public Snapshot minus(Snapshot earlier) {
+            long[] diff = new long[counts.length];
+            for (int i = 0; i < diff.length; i++)
+                diff[i] = counts[i] - earlier.counts[i];
+            return new Snapshot(diff);
+        }
+
+        public long getCount() {
+            return total;
+        }
+
+        /**
+         * @param percentile
+         *  A value between 0 and 100.
+         * @return the value at or below which the given percentage of all
+         *  recorded values fall, or 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return highestValueAt(i);
+            }
+            return getMax();
+        }
+
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0)
+                    return highestValueAt(i);
+            }
+            return 0;
+        }
+
+        public double getMean() {
+            if (total == 0)
+                return 0;
+            double sum = 0;
+            for (int i = 0; i < counts.length; i++)
+                sum += (double) counts[i] * highestValueAt(i);
+            return sum / total;
+        }
+
+        /**
+         * One-line summary; values are divided by the given unit, e.g. 1000
+         * to print nanosecond samples in microseconds.
+         */
+        public String summary(double unit) {
+            return String.format("count=%d p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f",
+                    total,
+                    getValueAtPercentile(50) / unit,
+                    getValueAtPercentile(90) / unit,
+                    getValueAtPercentile(99) / unit,
+                    getValueAtPercentile(99.9) / unit,
+                    getMax() / unit);
+        }
+    }
+}
\ No newline at end of file
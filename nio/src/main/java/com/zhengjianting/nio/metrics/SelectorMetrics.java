@@ -0,0 +1,164 @@
+package com.zhengjianting.nio.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one selector loop. The loop calls
+ * beginSelect() before select(), endSelect() after it and endProcessing()
+ * once the selected keys have been handled; each call costs a nanoTime()
+ * and a few uncontended atomic increments, so it can stay on in production.
+ *
+ * The numbers are exported as an MXBean named
+ * com.zhengjianting.nio:type=SelectorMetrics,name=&lt;name&gt; and can
+ * also be printed periodically.
+ */
+public class SelectorMetrics implements SelectorMetricsMXBean {
+    private final String name;
+    private final LongAdder selects = new LongAdder();
+    private final LongAdder zeroSelects = new LongAdder();
+    private final LongAdder keys = new LongAdder();
+    private final LongAdder selectNanos = new LongAdder();
+    private final LongAdder processNanos = new LongAdder();
+    private final LatencyHistogram selectWait = new LatencyHistogram();
+    private final LatencyHistogram processing = new LatencyHistogram();
+    private volatile int registered;
+
+    public SelectorMetrics(String name) {
+        this.name = name;
+    }
+
+    // @return the start time to pass to endSelect()
+    public long beginSelect() {
+        return System.nanoTime();
+    }
+
+    // @return the start time of key processing, to pass to endProcessing()
+    public long endSelect(long selectStart, int readyKeys) {
+        long now = System.nanoTime();
+        long waited = now - selectStart;
+        selects.increment();
+        if (readyKeys == 0)
+            zeroSelects.increment();
+        selectNanos.add(waited);
+        selectWait.record(waited);
+        return now;
+    }
+
+    public void endProcessing(long processStart, int keysHandled, int registeredChannels) {
+        long took = System.nanoTime() - processStart;
+        keys.add(keysHandled);
+        processNanos.add(took);
+        processing.record(took);
+        registered = registeredChannels;
+    }
+
+    /**
+     * Register with the platform MBean server. A failure is reported but
+     * does not stop the loop.
+     */
+    public SelectorMetrics register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("com.zhengjianting.nio:type=SelectorMetrics,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        return this;
+    }
+
+    /**
+     * Print a line with the interval's numbers every period seconds, from
+     * a daemon thread.
+     */
+    public void startDump(final PrintStream out, long periodSeconds) {
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + "-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleAtFixedRate(new Runnable() {
+            private LatencyHistogram.Snapshot lastWait = selectWait.snapshot();
+            private LatencyHistogram.Snapshot lastProcess = processing.snapshot();
+            private long lastZero = zeroSelects.sum();
+            private long lastKeys = keys.sum();
+
+            @Override
+            public void run() {
+                LatencyHistogram.Snapshot wait = selectWait.snapshot();
+                LatencyHistogram.Snapshot process = processing.snapshot();
+                long zero = zeroSelects.sum();
+                long handled = keys.sum();
+                out.println(name + ": channels=" + registered +
+                        ", selects=" + wait.minus(lastWait).getCount() +
+                        ", zero selects=" + (zero - lastZero) +
+                        ", keys=" + (handled - lastKeys) +
+                        ", select wait us [" + wait.minus(lastWait).summary(1000) + "]" +
+                        ", processing us [" + process.minus(lastProcess).summary(1000) + "]");
+                lastWait = wait;
+                lastProcess = process;
+                lastZero = zero;
+                lastKeys = handled;
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public long getSelectCount() {
+        return selects.sum();
+    }
+
+    @Override
+    public long getZeroSelectCount() {
+        return zeroSelects.sum();
+    }
+
+    @Override
+    public long getKeysProcessed() {
+        return keys.sum();
+    }
+
+    @Override
+    public double getMeanKeysPerSelect() {
+        long count = selects.sum();
+        return count == 0 ? 0 : (double) keys.sum() / count;
+    }
+
+    @Override
+    public int getRegisteredChannels() {
+        return registered;
+    }
+
+    @Override
+    public double getSelectWaitP50Micros() {
+        return selectWait.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getSelectWaitP99Micros() {
+        return selectWait.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getProcessP50Micros() {
+        return processing.snapshot().getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getProcessP99Micros() {
+        return processing.snapshot().getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getBusyRatio() {
+        long busy = processNanos.sum();
+        long total = busy + selectNanos.sum();
+        return total == 0 ? 0 : (double) busy / total;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,29 @@
+package com.zhengjianting.nio.metrics;
+
+/**
+ * JMX view of a selector loop's SelectorMetrics. Latencies are in
+ * microseconds and cover everything recorded since the loop started.
+ */
+public interface SelectorMetricsMXBean {
+    long getSelectCount();
+
+    // Times select() returned without any ready key
+    long getZeroSelectCount();
+
+    long getKeysProcessed();
+
+    double getMeanKeysPerSelect();
+
+    int getRegisteredChannels();
+
+    double getSelectWaitP50Micros();
+
+    double getSelectWaitP99Micros();
+
+    double getProcessP50Micros();
+
+    double getProcessP99Micros();
+
+    // Share of loop time spent handling keys rather than waiting in select()
+    double getBusyRatio();
+}
\ No newline at end of file
@@ -0,0 +1,133 @@
+package com.zhengjianting.nio.selector;
+
+import com.zhengjianting.nio.buffer.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Per-connection state attached to a channel's SelectionKey. Data which the
+ * socket does not accept right away is copied to an outbound queue and OP_WRITE
+ * interest is turned on until the queue drains, so no thread ever spins on a
+ * slow reader. Once the queued bytes reach the high-water mark the connection
+ * stops being writable and OP_READ interest is dropped; it comes back when the
+ * queue falls to the low-water mark (half the high-water mark).
+ *
+ * All methods are synchronized because in the thread pool variant a worker
+ * thread reads and echoes while the selector thread flushes on OP_WRITE.
+ */
+public class Connection {
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+    private int pendingBytes;
+    private boolean writable = true;
+    private boolean readSuspended;
+
+    public Connection(SelectionKey key, int highWaterMark) {
+        if (highWaterMark < 1)
+            throw new IllegalArgumentException("highWaterMark: " + highWaterMark);
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = highWaterMark / 2;
+    }
+
+    /**
+     * Write as much of the buffer as the socket takes without blocking and
+     * queue a copy of the remainder. The buffer is fully consumed on return.
+     */
+    public synchronized void write(ByteBuffer src) throws IOException {
+        if (outbound.isEmpty()) {
+            channel.write(src);
+            if (!src.hasRemaining())
+                return;
+        }
+
+        ByteBuffer copy = BufferPool.getDefault().allocate(src.remaining());
+        copy.limit(src.remaining());
+        copy.put(src);
+        copy.flip();
+        outbound.add(copy);
+        pendingBytes += copy.remaining();
+        updateInterest();
+    }
+
+    /**
+     * Write queued data until the queue is empty or the socket stops taking
+     * it. Called when the selector reports the channel writable.
+     */
+    public synchronized void flush() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer buffer = outbound.peek();
+            pendingBytes -= channel.write(buffer);
+            if (buffer.hasRemaining())
+                break; // socket send buffer is full, wait for OP_WRITE
+            BufferPool.getDefault().release(outbound.poll());
+        }
+        updateInterest();
+    }
+
+    /**
+     * Close the channel, which invalidates the key, and give the buffers
+     * still queued back to the pool.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            ByteBuffer buffer;
+            while ((buffer = outbound.poll()) != null)
+                BufferPool.getDefault().release(buffer);
+            pendingBytes = 0;
+        }
+    }
+
+    /**
+     * Whether the queued outbound data is below the high-water mark, i.e.
+     * whether it is fine to read more input that will be echoed back.
+     */
+    public synchronized boolean isWritable() {
+        return writable;
+    }
+
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    // Stop selecting for OP_READ while another thread services the channel
+    public synchronized void suspendReading() {
+        readSuspended = true;
+        updateInterest();
+    }
+
+    public synchronized void resumeReading() {
+        readSuspended = false;
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (pendingBytes >= highWaterMark)
+            writable = false;
+        else if (pendingBytes <= lowWaterMark)
+            writable = true;
+
+        if (!key.isValid())
+            return;
+        int ops = 0;
+        if (writable && !readSuspended)
+            ops |= SelectionKey.OP_READ;
+        if (!outbound.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+        if (key.interestOps() != ops)
+            key.interestOps(ops);
+    }
+}
\ No newline at end of file
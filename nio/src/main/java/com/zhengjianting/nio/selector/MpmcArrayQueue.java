@@ -0,0 +1,94 @@
+package com.zhengjianting.nio.selector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer queue backed by a ring
+ * of slots (Dmitry Vyukov's algorithm). Every slot carries a sequence number
+ * which tells producers and consumers whether it is free for the lap they are
+ * on, so offer() and poll() each need a single CAS on the tail or head index.
+ * The capacity is rounded up to a power of two.
+ */
+public final class MpmcArrayQueue<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(); // next slot to poll
+    private final AtomicLong tail = new AtomicLong(); // next slot to offer
+
+    public MpmcArrayQueue(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("capacity: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * Insert the element at the tail of the queue.
+     * @return false if the queue is full, in which case nothing was inserted
+     */
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        long pos = tail.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(index, e);
+                    sequences.lazySet(index, pos + 1); // publish to consumers
+                    return true;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false; // slot still holds an element from the previous lap
+            } else {
+                pos = tail.get(); // another producer got here first
+            }
+        }
+    }
+
+    /**
+     * Remove the element at the head of the queue.
+     * @return the element, or null if the queue is empty
+     */
+    public E poll() {
+        long pos = head.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E e = slots.get(index);
+                    slots.lazySet(index, null);
+                    sequences.lazySet(index, pos + mask + 1); // free for the next lap
+                    return e;
+                }
+                pos = head.get();
+            } else if (dif < 0) {
+                return null; // slot not yet published
+            } else {
+                pos = head.get(); // another consumer got here first
+            }
+        }
+    }
+
+    // Approximate while producers and consumers are active
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
\ No newline at end of file
@@ -1,5 +1,9 @@
 package com.zhengjianting.nio.selector;
 
+import com.zhengjianting.nio.buffer.BufferPool;
+import com.zhengjianting.nio.metrics.SelectorMetrics;
+
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
@@ -8,6 +12,12 @@ import java.util.Iterator;
 public class SelectSockets {
     public static int PORT_NUMBER = 1234;
 
+    // Print selector loop metrics every N seconds, e.g. -Dnio.metrics.dumpInterval=10
+    public static final int METRICS_DUMP_INTERVAL = Integer.getInteger("nio.metrics.dumpInterval", 0);
+
+    // Outbound bytes queued on a connection before reads from it are paused
+    private int highWaterMark = Connection.DEFAULT_HIGH_WATER_MARK;
+
     public static void main(String[] args) throws Exception {
         new SelectSockets().go(args);
     }
@@ -30,10 +40,15 @@ public class SelectSockets {
         // Register the ServerSocketChannel with the Selector
         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
 
+        // Exported over JMX; see SelectorMetrics
+        SelectorMetrics metrics = newSelectorMetrics(getClass().getSimpleName());
+
         while (true) {
             // This may block for a long time. Upon Returning, the
             // selected set contains keys of the ready channels.
+            long selectStart = metrics.beginSelect();
             int n = selector.select();
+            long processStart = metrics.endSelect(selectStart, n);
             if (n == 0)
                 continue; // nothing to do
 
@@ -45,49 +60,108 @@ public class SelectSockets {
                 SelectionKey key = it.next();
 
                 // Is a new connection coming in?
-                if (key.isAcceptable()) {
-                    ServerSocketChannel server = (ServerSocketChannel) key.channel();
-                    SocketChannel channel = server.accept();
-                    registerChannel(selector, channel, SelectionKey.OP_READ);
-                    sayHello(channel);
-                }
+                if (key.isAcceptable())
+                    acceptConnection(selector, key);
+
+                // Can queued data be sent on this channel
+                if (key.isValid() && key.isWritable())
+                    writeDataToSocket(key);
 
                 // Is there data to read in this channel
-                if (key.isReadable())
+                if (key.isValid() && key.isReadable())
                     readDataFromSocket(key);
 
                 // Remove key from selected set; it's been handled
                 it.remove();
             }
+            metrics.endProcessing(processStart, n, selector.keys().size());
         }
     }
 
+    // Create and register the metrics of one selector loop
+    protected static SelectorMetrics newSelectorMetrics(String name) {
+        SelectorMetrics metrics = new SelectorMetrics(name).register();
+        if (METRICS_DUMP_INTERVAL > 0)
+            metrics.startDump(System.out, METRICS_DUMP_INTERVAL);
+        return metrics;
+    }
+
+    /**
+     * Accept a new connection from the listening channel of the given key,
+     * register it with the selector for reading and greet the client.
+     * Subclasses may override this to hand the channel to another selector.
+     */
+    protected void acceptConnection(Selector selector, SelectionKey key) throws Exception {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return; // could happen
+
+        SelectionKey channelKey = registerChannel(selector, channel, SelectionKey.OP_READ);
+        attachConnection(channelKey);
+        sayHello(channelKey);
+    }
+
+    public void setHighWaterMark(int highWaterMark) {
+        if (highWaterMark < 1)
+            throw new IllegalArgumentException("highWaterMark: " + highWaterMark);
+        this.highWaterMark = highWaterMark;
+    }
+
+    /**
+     * Attach a Connection, which owns the outbound queue of the channel, to
+     * a newly registered key.
+     */
+    protected Connection attachConnection(SelectionKey key) {
+        Connection connection = new Connection(key, highWaterMark);
+        key.attach(connection);
+        return connection;
+    }
+
     /**
      * Register the given channel with the given selector for the given
      * operations of interest
      */
-    protected void registerChannel(Selector selector, SelectableChannel channel, int ops) throws Exception {
+    protected SelectionKey registerChannel(Selector selector, SelectableChannel channel, int ops) throws Exception {
         if (channel == null)
-            return; // could happen
+            return null; // could happen
 
         // Set the new channel nonblocking
         channel.configureBlocking(false);
 
         // Register it with the selector
-        channel.register(selector, ops);
+        return channel.register(selector, ops);
     }
 
     // Use the same byte buffer for all channels. A single thread is
     // servicing all the channels, so no danger of concurrent access.
-    private ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    private ByteBuffer buffer = BufferPool.getDefault().allocate(1024);
 
     // Spew a greeting to the incoming client connection.
-    private void sayHello(SocketChannel channel) throws Exception {
+    private void sayHello(SelectionKey key) throws Exception {
+        sayHello(key, buffer);
+    }
+
+    protected void sayHello(SelectionKey key, ByteBuffer buffer) throws Exception {
         buffer.clear();
         buffer.put("Hi there!\r\n".getBytes());
         buffer.flip();
 
-        channel.write(buffer);
+        ((Connection) key.attachment()).write(buffer);
+    }
+
+    /**
+     * Data handler method for a channel whose queued outbound data can be
+     * sent. If the write fails the channel is closed, which invalidates the
+     * key.
+     */
+    protected void writeDataToSocket(SelectionKey key) throws Exception {
+        try {
+            ((Connection) key.attachment()).flush();
+        } catch (IOException e) {
+            System.out.println("Caught '" + e + "' closing channel");
+            ((Connection) key.attachment()).close();
+        }
     }
 
 
@@ -101,28 +175,35 @@ public class SelectSockets {
      *  de-register the channel on the next select call.
      */
     protected void readDataFromSocket(SelectionKey key) throws Exception {
+        echoChannel(key, buffer);
+    }
+
+    /**
+     * Echo everything currently readable on the channel back to it, using
+     * the given buffer as scratch space. Whatever the socket does not take
+     * right away is queued on the key's Connection and sent on OP_WRITE.
+     * Reading stops once the queue reaches the high-water mark. The channel
+     * is closed on EOF.
+     */
+    protected void echoChannel(SelectionKey key, ByteBuffer buffer) throws Exception {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        int count;
+        Connection connection = (Connection) key.attachment();
+        int count = 0;
         buffer.clear();
 
-        // Loop while data is available; channel is nonblocking
-        while ((count = socketChannel.read(buffer)) > 0) {
+        // Loop while data is available and the client keeps up with
+        // what we send back; channel is nonblocking
+        while (connection.isWritable() && (count = socketChannel.read(buffer)) > 0) {
             buffer.flip(); // Make buffer readable
 
-            // Send the data; don't assume it goes all at once
-            while (buffer.hasRemaining())
-                socketChannel.write(buffer);
-
-            // WARNING: the above loop is evil. Because
-            // it's writing back to the same nonblocking
-            // channel it read the data from, this code can
-            // potentially spin in a busy loop. In real life
-            // you'd do something more useful than this.
+            // Send what the socket takes now, queue the rest. Unlike
+            // writing in a loop, this never spins on a slow reader.
+            connection.write(buffer);
 
             buffer.clear();
         }
 
         if (count < 0)
-            socketChannel.close(); // Close channel on EOF, invalidates the key
+            connection.close(); // Close channel on EOF, invalidates the key
     }
 }
\ No newline at end of file
@@ -0,0 +1,193 @@
+package com.zhengjianting.nio.selector;
+
+import com.zhengjianting.nio.buffer.BufferPool;
+import com.zhengjianting.nio.metrics.SelectorMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Specialization of the SelectSockets class which runs in boss/worker
+ * (multi-reactor) mode. The selection loop of the parent class only accepts
+ * connections; every accepted channel is handed to one of N worker reactors,
+ * each with its own Selector and thread. A channel stays with the worker it
+ * was assigned to for its whole lifetime, so no locking is needed around the
+ * per-worker buffer.
+ */
+public class SelectSocketsMultiReactor extends SelectSockets {
+    private final Reactor[] reactors;
+    private final boolean leastLoaded;
+    private int next; // only touched by the accept thread
+
+    public SelectSocketsMultiReactor() throws IOException {
+        this(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * @param workers
+     *  Number of worker selectors, each serviced by its own thread.
+     * @param leastLoaded
+     *  If true, new channels go to the worker currently owning the fewest
+     *  channels; otherwise workers are picked round-robin.
+     */
+    public SelectSocketsMultiReactor(int workers, boolean leastLoaded) throws IOException {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers: " + workers);
+        this.leastLoaded = leastLoaded;
+        this.reactors = new Reactor[workers];
+        for (int i = 0; i < workers; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            reactors[i].setName("Reactor" + (i + 1));
+            reactors[i].setDaemon(true);
+            reactors[i].start();
+        }
+    }
+
+    /**
+     * Accept the connection on the boss selector's thread, then pass it to
+     * a worker reactor which registers it with its own selector.
+     */
+    @Override
+    protected void acceptConnection(Selector selector, SelectionKey key) throws Exception {
+        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return; // could happen
+
+        channel.configureBlocking(false);
+        nextReactor().assign(channel);
+    }
+
+    private Reactor nextReactor() {
+        if (!leastLoaded) {
+            Reactor reactor = reactors[next];
+            next = (next + 1) % reactors.length;
+            return reactor;
+        }
+
+        Reactor best = reactors[0];
+        for (int i = 1; i < reactors.length; i++) {
+            if (reactors[i].channels.get() < best.channels.get())
+                best = reactors[i];
+        }
+        return best;
+    }
+
+    /**
+     * Usage: SelectSocketsMultiReactor [port] [workers] [least-loaded]
+     */
+    public static void main(String[] args) throws Exception {
+        int workers = Runtime.getRuntime().availableProcessors();
+        if (args.length > 1)
+            workers = Integer.parseInt(args[1]);
+        boolean leastLoaded = args.length > 2 && "least-loaded".equals(args[2]);
+        new SelectSocketsMultiReactor(workers, leastLoaded).go(args);
+    }
+
+    /**
+     * A worker reactor. Channels are queued by the accept thread and
+     * registered by the reactor itself, because register() blocks while
+     * another thread is inside select() on the same selector.
+     */
+    private class Reactor extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger channels = new AtomicInteger();
+        private final ByteBuffer buffer = BufferPool.getDefault().allocate(1024);
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        // Called from the accept thread
+        void assign(SocketChannel channel) {
+            channels.incrementAndGet();
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            SelectorMetrics metrics = newSelectorMetrics(getName());
+            while (true) {
+                try {
+                    long selectStart = metrics.beginSelect();
+                    int n = selector.select();
+                    long processStart = metrics.endSelect(selectStart, n);
+                    registerPending();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isWritable())
+                            flush(key);
+                        if (key.isValid() && key.isReadable())
+                            service(key);
+                    }
+                    metrics.endProcessing(processStart, n, selector.keys().size());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    attachConnection(key);
+                    sayHello(key, buffer);
+                } catch (Exception e) {
+                    System.out.println("Caught '" + e + "' closing channel");
+                    close(channel);
+                }
+            }
+        }
+
+        private void service(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                echoChannel(key, buffer);
+            } catch (Exception e) {
+                System.out.println("Caught '" + e + "' closing channel");
+                close(channel);
+                return;
+            }
+            if (!channel.isOpen())
+                channels.decrementAndGet(); // closed on EOF
+        }
+
+        private void flush(SelectionKey key) {
+            try {
+                ((Connection) key.attachment()).flush();
+            } catch (IOException e) {
+                System.out.println("Caught '" + e + "' closing channel");
+                close((SocketChannel) key.channel());
+            }
+        }
+
+        private void close(SocketChannel channel) {
+            channels.decrementAndGet();
+            SelectionKey key = channel.keyFor(selector);
+            try {
+                if (key != null && key.attachment() != null)
+                    ((Connection) key.attachment()).close();
+                else
+                    channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -1,153 +1,171 @@
 package com.zhengjianting.nio.selector;
 
+import com.zhengjianting.nio.buffer.BufferPool;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Specialization of the SelectSockets class which uses a thread pool to service
- * channels. The thread pool is an ad-hoc implementation quicky lashed togther
- * in a few hours for demonstration purposes. It's definitely not production quality.
+ * Specialization of the SelectSockets class which uses a pool of worker
+ * threads to service channels. Ready keys are handed to the workers through
+ * a bounded lock-free queue. A key is never dropped: if the queue is full the
+ * key is parked, with OP_READ interest still switched off, until a worker
+ * frees a slot. Because a channel's OP_READ interest stays off from the
+ * moment its key is dispatched until a worker has drained it, at most one
+ * worker services a channel at a time and per-channel ordering is kept.
  */
 public class SelectSocketsThreadPool extends SelectSockets {
     private static final int MAX_THREADS = 5;
-    private ThreadPool pool = new ThreadPool(MAX_THREADS);
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final MpmcArrayQueue<SelectionKey> queue;
+    // Signals workers that the queue has work; one permit per queued key
+    private final Semaphore ready = new Semaphore(0);
+    // Keys which did not fit in the queue; each channel appears here at most once
+    private final Queue<SelectionKey> parked = new ConcurrentLinkedQueue<>();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public SelectSocketsThreadPool() {
+        this(MAX_THREADS, QUEUE_CAPACITY);
+    }
+
+    public SelectSocketsThreadPool(int workers, int queueCapacity) {
+        if (workers < 1)
+            throw new IllegalArgumentException("workers: " + workers);
+        queue = new MpmcArrayQueue<>(queueCapacity);
+        for (int i = 0; i < workers; i++) {
+            WorkerThread thread = new WorkerThread();
+
+            // Set thread name for debugging. Start it.
+            thread.setName("Worker" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
 
     /**
      * Sample data handler method for a channel with data ready to read. This
-     * method is invoked from the go( ) method in the parent class. This handler
-     * delegates to a worker thread in a thread pool to service the channel,
-     * then returns immediately.
+     * method is invoked from the go( ) method in the parent class. The key's
+     * interest in OP_READ is turned off so the selector ignores the channel
+     * while it is queued or being serviced, then the key is dispatched to the
+     * workers and this method returns immediately.
      */
     @Override
     protected void readDataFromSocket(SelectionKey key) {
-        WorkerThread worker = pool.getWorker();
-        if (worker == null) {
-            // No threads available. Do nothing. The selection
-            // loop will keep calling this method until a
-            // thread becomes available. This design could be improved.
-            return;
-        }
+        ((Connection) key.attachment()).suspendReading();
+        dispatch(key);
+    }
 
-        // Invoking this wakes up the worker thread, then returns
-        worker.serviceChannel(key);
+    private void dispatch(SelectionKey key) {
+        if (!offer(key)) {
+            // Queue full: keep the key, with reads paused, until a worker
+            // has room for it. This is the backpressure on the selector.
+            rejected.incrementAndGet();
+            parked.add(key);
+            // A worker may have freed a slot and found nothing parked just
+            // before the add; retry so the key is not stranded
+            unpark();
+        }
     }
 
-    public static void main(String[] args) throws Exception {
-        new SelectSocketsThreadPool().go(args);
+    private boolean offer(SelectionKey key) {
+        if (!queue.offer(key))
+            return false;
+        ready.release();
+        return true;
     }
 
     /**
-     * A very simple thread pool class. The pool size is set at construction
-     * time and remains fixed. Threads are cycled through a FIFO idle queue.
+     * Moves parked keys into the queue while it has room. Called by a worker
+     * after it frees a queue slot and by the selector after it parks a key:
+     * each side checks the other's state after publishing its own, so a
+     * parked key is always picked up by one of them.
      */
-    private class ThreadPool {
-        List<WorkerThread> idle = new LinkedList<>();
-
-        ThreadPool(int poolSize) {
-            // Fill up the pool with worker threads
-            for (int i = 0; i < poolSize; i++) {
-                WorkerThread thread = new WorkerThread(this);
+    private void unpark() {
+        while (!parked.isEmpty() && queue.size() < queue.capacity()) {
+            SelectionKey key = parked.poll();
+            if (key == null)
+                return;
+            if (!offer(key))
+                parked.add(key); // lost the slot to another producer; check again
+        }
+    }
 
-                // Set thread name for debugging. Start it.
-                thread.setName("Worker" + (i + 1));
-                thread.start();
+    // Number of keys waiting in the queue for a worker
+    public int getQueueDepth() {
+        return queue.size();
+    }
 
-                idle.add(thread);
-            }
-        }
+    // Number of keys waiting for room in the queue
+    public int getParkedCount() {
+        return parked.size();
+    }
 
-        // Find an idle worker thread, if any. Could return null.
-        WorkerThread getWorker() {
-            WorkerThread worker = null;
-            synchronized (idle) {
-                if (idle.size() > 0)
-                    worker = idle.remove(0);
-            }
-            return worker;
-        }
+    // Number of times a key found the queue full and had to be parked
+    public long getRejectedCount() {
+        return rejected.get();
+    }
 
-        // Called by the worker thread to return itself to the idle pool.
-        void returnWorker(WorkerThread worker) {
-            synchronized (idle) {
-                idle.add(worker);
-            }
-        }
+    /**
+     * Usage: SelectSocketsThreadPool [port] [workers] [queue capacity]
+     */
+    public static void main(String[] args) throws Exception {
+        int workers = MAX_THREADS;
+        int capacity = QUEUE_CAPACITY;
+        if (args.length > 1)
+            workers = Integer.parseInt(args[1]);
+        if (args.length > 2)
+            capacity = Integer.parseInt(args[2]);
+        new SelectSocketsThreadPool(workers, capacity).go(args);
     }
 
     /**
      * A worker thread class which can drain channels and echo-back the input.
-     * Each instance is constructed with a reference to the owning thread pool
-     * object. When started, the thread loops forever waiting to be awakened to
-     * service the channel associated with a SelectionKey object. The worker is
-     * tasked by calling its serviceChannel() method with a SelectionKey
-     * object. The serviceChannel() method stores the key reference in the
-     * thread object then calls notify( ) to wake it up. When the channel has
-     * been drained, the worker thread returns itself to its parent pool.
+     * When started, the thread loops forever taking keys off the shared
+     * queue. When a channel has been drained, its OP_READ interest is
+     * restored and the selector is woken so it resumes watching the channel.
      */
     private class WorkerThread extends Thread {
-        private ByteBuffer buffer = ByteBuffer.allocate(1024);
-        private ThreadPool pool;
-        private SelectionKey key;
+        private final ByteBuffer buffer = BufferPool.getDefault().allocate(1024);
 
-        WorkerThread(ThreadPool pool) {
-            this.pool = pool;
-        }
-
-        // Loop forever waiting for work to do
-        public synchronized void run() {
+        public void run() {
             System.out.println(this.getName() + " is ready");
             while (true) {
                 try {
-                    // Sleep and release object lock
-                    this.wait();
+                    ready.acquire();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
-                    // Clear interrupt status
-                    this.interrupt();
+                    return;
                 }
 
-                if (key == null)
-                    continue; // just in case
+                // The permit guarantees an element, but its producer may
+                // not have published it yet
+                SelectionKey key;
+                while ((key = queue.poll()) == null)
+                    Thread.yield();
+                unpark();
+                if (!key.isValid())
+                    continue; // channel closed while queued
 
-                System.out.println(this.getName() + " has been awakened");
                 try {
                     drainChannel(key);
                 } catch (Exception e) {
                     System.out.println("Caught '" + e + "' closing channel");
                     try {
-                        key.channel().close();
+                        ((Connection) key.attachment()).close();
                     } catch (IOException ex) {
                         ex.printStackTrace();
                     }
                     key.selector().wakeup();
                 }
-
-                key = null;
-
-                // Done. Ready for more. Return to pool
-                this.pool.returnWorker(this);
             }
         }
 
-        /**
-         * Called to initiate a unit of work by this worker thread on the
-         * provided SelectionKey object. This method is synchronized, as is the
-         * run() method, so only one key can be serviced at a given time.
-         * Before waking the worker thread, and before returning to the main
-         * selection loop, this key's interest set is updated to remove OP_READ.
-         * This will cause the selector to ignore read-readiness for this
-         * channel while the worker thread is servicing it.
-         */
-        synchronized void serviceChannel(SelectionKey key) {
-            this.key = key;
-            key.interestOps(key.interestOps() & (~SelectionKey.OP_READ));
-            this.notify(); // Awaken the thread
-        }
-
         /**
          * The actual code which drains the channel associated with the given
          * key. This method assumes the key has been modified prior to
@@ -156,32 +174,13 @@ public class SelectSocketsThreadPool extends SelectSockets {
          * selector so the selector will resume watching this channel.
          */
         void drainChannel(SelectionKey key) throws Exception {
-            SocketChannel channel = (SocketChannel) key.channel();
-            int count;
-            buffer.clear(); // Empty buffer
-
-            // Loop while data is available; channel is nonblocking
-            while ((count = channel.read(buffer)) > 0) {
-                buffer.flip(); // make buffer readable
-
-                // Send the data; may not go all at once
-                while (buffer.hasRemaining())
-                    channel.write(buffer);
-
-                // WARNING: the above loop is evil.
-                // See comments in superclass.
-
-                buffer.clear(); // Empty buffer
-            }
-
-            if (count < 0) {
-                // Close channel on EOF; invalidates the key
-                channel.close();
-                return;
-            }
+            echoChannel(key, buffer);
+            if (!key.channel().isOpen())
+                return; // closed on EOF; invalidates the key
 
-            // Resume interest in OP_READ
-            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            // Resume interest in OP_READ, unless the client is not keeping
+            // up with the echoed data; then OP_WRITE will bring it back
+            ((Connection) key.attachment()).resumeReading();
 
             // Cycle the selector so this key is active again
             key.selector().wakeup();